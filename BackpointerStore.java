@@ -0,0 +1,136 @@
+package probabalistic_reasoning;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.LongBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Viterbi backpointers as packed action codes.
+ *
+ * A state's best predecessor is always one of its MAX_MOVES neighbor-table
+ * slots, so a backpointer is the slot index a (the predecessor is
+ * prev[state * MAX_MOVES + a]) and fits in 3 bits. A step's codes are
+ * packed 21 to a long, so a step of n states takes about 3n / 8 bytes
+ * instead of 4n for an int per state.
+ *
+ * The words live either on the heap, in fixed-size segments allocated up
+ * front, or in a file mapped in windows, for decodes too long for memory.
+ */
+final class BackpointerStore implements AutoCloseable {
+  static final int BITS = 3;
+  static final int PER_WORD = 64 / BITS; // 21
+  static final long MASK = (1L << BITS) - 1;
+
+  // Words per heap segment or mapped window
+  private static final int SEGMENT_WORDS = 1 << 24;
+
+  final int stateCount;
+  final int maxSteps;
+  final int wordsPerStep;
+
+  private final long[][] segments; // On the heap, or null if mapped
+  private final FileChannel channel; // Mapped, or null
+  private LongBuffer window;
+  private long windowBase = -1; // First word of the mapped window
+
+  private BackpointerStore(int stateCount, int maxSteps, FileChannel channel) {
+    this.stateCount = stateCount;
+    this.maxSteps = maxSteps;
+    this.wordsPerStep = words(stateCount);
+    this.channel = channel;
+
+    long total = (long) wordsPerStep * maxSteps;
+    if (channel != null) {
+      segments = null;
+    } else {
+      segments = new long[(int) ((total + SEGMENT_WORDS - 1) / SEGMENT_WORDS)][];
+      for (int s = 0; s < segments.length; s++)
+        segments[s] = new long[(int) Math.min(SEGMENT_WORDS, total - (long) s * SEGMENT_WORDS)];
+    }
+  }
+
+  /**
+   * Codes for maxSteps steps, on the heap
+   */
+  static BackpointerStore inMemory(int stateCount, int maxSteps) {
+    return new BackpointerStore(stateCount, maxSteps, null);
+  }
+
+  /**
+   * Codes for maxSteps steps, in the given file (created or truncated, and
+   * sized up front)
+   */
+  static BackpointerStore mapped(Path file, int stateCount, int maxSteps) throws IOException {
+    FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING,
+        StandardOpenOption.READ, StandardOpenOption.WRITE);
+    try {
+      long bytes = 8L * words(stateCount) * maxSteps;
+      if (bytes > 0)
+        channel.write(ByteBuffer.allocate(1), bytes - 1);
+      return new BackpointerStore(stateCount, maxSteps, channel);
+    } catch (IOException | RuntimeException e) {
+      channel.close();
+      throw e;
+    }
+  }
+
+  // Words for one step's codes
+  static int words(int stateCount) {
+    return (stateCount + PER_WORD - 1) / PER_WORD;
+  }
+
+  /**
+   * Stores a step's packed codes (wordsPerStep words, code of state s at
+   * bits 3 * (s % 21) of word s / 21)
+   */
+  void put(int step, long[] row) {
+    long first = (long) step * wordsPerStep;
+    if (segments != null) {
+      for (int w = 0; w < wordsPerStep; w++) {
+        long at = first + w;
+        segments[(int) (at / SEGMENT_WORDS)][(int) (at % SEGMENT_WORDS)] = row[w];
+      }
+      return;
+    }
+    for (int w = 0; w < wordsPerStep; w++)
+      window(first + w).put((int) (first + w - windowBase), row[w]);
+  }
+
+  /**
+   * The code stored for a state at a step
+   */
+  int code(int step, int state) {
+    long at = (long) step * wordsPerStep + state / PER_WORD;
+    long word;
+    if (segments != null)
+      word = segments[(int) (at / SEGMENT_WORDS)][(int) (at % SEGMENT_WORDS)];
+    else
+      word = window(at).get((int) (at - windowBase));
+    return (int) ((word >>> (BITS * (state % PER_WORD))) & MASK);
+  }
+
+  public void close() throws IOException {
+    if (channel != null)
+      channel.close();
+  }
+
+  // The mapped window holding the given word
+  private LongBuffer window(long at) {
+    if (windowBase < 0 || at < windowBase || at >= windowBase + window.capacity()) {
+      windowBase = at - at % SEGMENT_WORDS;
+      long words = Math.min(SEGMENT_WORDS, (long) wordsPerStep * maxSteps - windowBase);
+      try {
+        window = channel.map(FileChannel.MapMode.READ_WRITE, 8 * windowBase, 8 * words)
+            .order(ByteOrder.LITTLE_ENDIAN).asLongBuffer();
+      } catch (IOException e) {
+        throw new UncheckedIOException(e);
+      }
+    }
+    return window;
+  }
+}
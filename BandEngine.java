@@ -0,0 +1,313 @@
+package probabalistic_reasoning;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Runs GridStencil steps over horizontal bands of the maze on a fixed set of
+ * threads.
+ *
+ * The stencil only couples neighboring rows, so each band can be updated on
+ * its own once the rows on either side of it (its halo) have been weighed.
+ * A step is a few phases (weigh, gather, scale) with a barrier between each;
+ * the barrier is what hands the halo rows over, since the bands share one
+ * message array. Normalizers are reduced from one partial result per band,
+ * summed in band order, so a given thread count always gives the same
+ * numbers.
+ *
+ * The calling thread works the first band and the other threads are
+ * started once and parked between phases. Nothing is allocated per step.
+ * An engine runs one step at a time; it is not for concurrent callers.
+ *
+ * Whatever a band throws (Errors included) is rethrown to the caller once
+ * every band has finished the phase. A failure in a worker leaves the
+ * engine broken: the bands may be out of step, so later calls throw
+ * instead of running.
+ */
+public class BandEngine implements AutoCloseable {
+  private static final int SPINS = 1 << 10; // Busy-waits before parking
+
+  // Phases
+  private static final int WEIGH = 0, GATHER = 1, SCALE = 2,
+      WEIGH_BACK = 3, GATHER_BACK = 4,
+      WEIGH_LOG = 5, MAX_GATHER = 6, LOG = 7, SHIFT = 8,
+      TO_STATES = 9, PRODUCT = 10, SCALE_STATES = 11;
+
+  public final GridStencil stencil;
+  public final int threads;
+
+  private final int[] rowStart;    // Band b is grid rows [rowStart[b], rowStart[b + 1])
+  private final int[] stateStart;  // and states [stateStart[b], stateStart[b + 1])
+  private final double[] partial;  // One partial sum or max per band
+  private final double[] tmp;      // Weighed message, shared by all bands
+  private final Thread[] workers;
+
+  // The current phase and its arguments, published by the volatile write
+  // of generation
+  private int phase;
+  private double[] src, src2, dst;
+  private byte[] back;
+  private int color;
+  private double factor;
+
+  private volatile int generation;
+  private volatile boolean closed;
+  private volatile Thread caller;
+  private volatile Throwable failure; // Thrown by a worker during the current phase
+  private volatile Throwable broken;  // The worker failure that broke the engine, if any
+  private final AtomicInteger pending = new AtomicInteger();
+
+  public BandEngine(GridStencil stencil, int threads) {
+    if (threads < 1)
+      throw new IllegalArgumentException("Need at least one thread, got " + threads);
+
+    this.stencil = stencil;
+    this.threads = Math.min(threads, Math.max(1, stencil.height));
+    rowStart = new int[this.threads + 1];
+    stateStart = new int[this.threads + 1];
+    for (int b = 0; b <= this.threads; b++) {
+      rowStart[b] = (int) ((long) stencil.height * b / this.threads);
+      stateStart[b] = (int) ((long) stencil.stateIndex.length * b / this.threads);
+    }
+    partial = new double[this.threads];
+    tmp = new double[stencil.size];
+
+    workers = new Thread[this.threads - 1];
+    for (int w = 0; w < workers.length; w++) {
+      final int band = w + 1;
+      workers[w] = new Thread(() -> work(band), "band-" + band);
+      workers[w].setDaemon(true);
+      workers[w].start();
+    }
+  }
+
+  /**
+   * out = alpha * SensorModel(color) * TransitionTranspose * message, and
+   * returns the normalizer alpha removed
+   */
+  public double filter(double[] message, double[] out, int color) {
+    run(WEIGH, message, null, null, color, 0.0);
+    double sum = sum(run(GATHER, null, out, null, color, 0.0));
+    if (sum == 0.0)
+      throw new IllegalStateException("Evidence is impossible under the model");
+    run(SCALE, null, out, null, color, 1.0 / sum);
+    return sum;
+  }
+
+  /**
+   * out = alpha * TransitionModel * SensorModel(color) * message (one step
+   * of the backward message), and returns the normalizer alpha removed
+   */
+  public double backward(double[] message, double[] out, int color) {
+    run(WEIGH_BACK, message, null, null, color, 0.0);
+    double sum = sum(run(GATHER_BACK, null, out, null, color, 0.0));
+    if (sum == 0.0)
+      throw new IllegalStateException("Evidence is impossible under the model");
+    run(SCALE, null, out, null, color, 1.0 / sum);
+    return sum;
+  }
+
+  /**
+   * First Viterbi scores: log(SensorModel(color) * TransitionTranspose *
+   * prior), shifted so the best is 0. Score arrays must start out filled
+   * with -infinity, as only the cells of the grid are written.
+   */
+  public void viterbiStart(double[] prior, double[] out, int color) {
+    stencil.buildLogTables();
+    run(WEIGH, prior, null, null, color, 0.0);
+    run(GATHER, null, out, null, color, 0.0);
+    double max = max(run(LOG, out, out, null, color, 0.0));
+    if (max == Double.NEGATIVE_INFINITY)
+      throw new IllegalStateException("Evidence is impossible under the model");
+    run(SHIFT, null, out, null, color, max);
+  }
+
+  /**
+   * out = best score over each cell's predecessors + log P(move) +
+   * log SensorModel(color), shifted so the best is 0, with the index of each
+   * cell's best predecessor (see GridStencil.moveOffset) in back
+   */
+  public void viterbi(double[] score, double[] out, byte[] back, int color) {
+    run(WEIGH_LOG, score, null, null, color, 0.0);
+    double max = max(run(MAX_GATHER, null, out, back, color, 0.0));
+    if (max == Double.NEGATIVE_INFINITY)
+      throw new IllegalStateException("Evidence is impossible under the model");
+    run(SHIFT, null, out, null, color, max);
+  }
+
+  /**
+   * Copies a padded message out as a message over states
+   */
+  public void toStates(double[] grid, double[] states) {
+    run(TO_STATES, grid, states, null, 0, 0.0);
+  }
+
+  /**
+   * states = alpha * a * b, element-wise from two padded messages (a
+   * smoothed distribution from the forward and backward messages)
+   */
+  public void product(double[] a, double[] b, double[] states) {
+    src2 = b;
+    double sum = sum(run(PRODUCT, a, states, null, 0, 0.0));
+    if (sum == 0.0)
+      throw new IllegalStateException("Evidence is impossible under the model");
+    run(SCALE_STATES, null, states, null, 0, 1.0 / sum);
+  }
+
+  /**
+   * Stops the worker threads
+   */
+  public void close() {
+    closed = true;
+    for (Thread worker : workers)
+      LockSupport.unpark(worker);
+  }
+
+  // Runs one phase on every band and waits for all of them
+  private double[] run(int phase, double[] src, double[] dst, byte[] back, int color, double factor) {
+    if (closed)
+      throw new IllegalStateException("Engine is closed");
+    if (broken != null)
+      throw new IllegalStateException("Engine is broken by an earlier worker failure", broken);
+
+    this.phase = phase;
+    this.src = src;
+    this.dst = dst;
+    this.back = back;
+    this.color = color;
+    this.factor = factor;
+    caller = Thread.currentThread();
+    pending.set(workers.length);
+    generation++; // Publishes the fields above to the workers
+
+    for (Thread worker : workers)
+      LockSupport.unpark(worker);
+    Throwable thrown = null;
+    try {
+      band(0);
+    } catch (Throwable e) {
+      thrown = e;
+    }
+
+    // Even if band 0 threw, the workers are still reading this phase's
+    // fields, so wait for them before the next run() can change them
+    for (int spin = 0; pending.get() != 0; spin++) {
+      if (spin < SPINS)
+        Thread.onSpinWait();
+      else
+        LockSupport.park(this);
+    }
+
+    Throwable e = failure;
+    if (e != null) {
+      failure = null;
+      broken = e;
+      if (thrown == null)
+        thrown = e;
+      else
+        thrown.addSuppressed(e);
+    }
+    if (thrown instanceof RuntimeException)
+      throw (RuntimeException) thrown;
+    if (thrown instanceof Error)
+      throw (Error) thrown;
+    return partial;
+  }
+
+  // Worker loop: wait for the next phase, do this band's share, report in
+  private void work(int band) {
+    int seen = 0;
+    while (true) {
+      for (int spin = 0; generation == seen && !closed; spin++) {
+        if (spin < SPINS)
+          Thread.onSpinWait();
+        else
+          LockSupport.park(this);
+      }
+      if (closed)
+        return;
+
+      seen = generation;
+      try {
+        band(band);
+      } catch (Throwable e) {
+        failure = e; // Rethrown by run(); one is enough if several bands fail
+      } finally {
+        if (pending.decrementAndGet() == 0)
+          LockSupport.unpark(caller);
+      }
+    }
+  }
+
+  private void band(int band) {
+    int from = rowStart[band], to = rowStart[band + 1];
+    // Padded rows of the band; the first and last bands also weigh the
+    // padding rows above and below the grid
+    int padFrom = (band == 0) ? 0 : from + 1;
+    int padTo = (band == rowStart.length - 2) ? stencil.height + 2 : to + 1;
+
+    switch (phase) {
+    case WEIGH:
+      stencil.weigh(src, tmp, padFrom, padTo);
+      break;
+    case GATHER:
+      partial[band] = stencil.gather(tmp, dst, color, from, to);
+      break;
+    case SCALE:
+      stencil.scale(dst, factor, from, to);
+      break;
+    case WEIGH_BACK:
+      stencil.weighBack(src, tmp, color, padFrom, padTo);
+      break;
+    case GATHER_BACK:
+      partial[band] = stencil.gatherBack(tmp, dst, from, to);
+      break;
+    case WEIGH_LOG:
+      stencil.weighLog(src, tmp, padFrom, padTo);
+      break;
+    case MAX_GATHER:
+      partial[band] = stencil.maxGather(tmp, dst, back, color, from, to);
+      break;
+    case LOG:
+      partial[band] = stencil.log(src, dst, from, to);
+      break;
+    case SHIFT:
+      stencil.shift(dst, factor, from, to);
+      break;
+    case TO_STATES:
+      stencil.toStates(src, dst, stateStart[band], stateStart[band + 1]);
+      break;
+    case PRODUCT: {
+      double sum = 0.0;
+      for (int state = stateStart[band]; state < stateStart[band + 1]; state++) {
+        int i = stencil.stateIndex[state];
+        dst[state] = src[i] * src2[i];
+        sum += dst[state];
+      }
+      partial[band] = sum;
+      break;
+    }
+    case SCALE_STATES:
+      for (int state = stateStart[band]; state < stateStart[band + 1]; state++)
+        dst[state] *= factor;
+      break;
+    default:
+      throw new IllegalStateException("Unknown phase " + phase);
+    }
+  }
+
+  private double sum(double[] parts) {
+    double sum = 0.0;
+    for (double part : parts)
+      sum += part;
+    return sum;
+  }
+
+  private double max(double[] parts) {
+    double max = Double.NEGATIVE_INFINITY;
+    for (double part : parts)
+      if (part > max)
+        max = part;
+    return max;
+  }
+}
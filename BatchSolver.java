@@ -0,0 +1,264 @@
+package probabalistic_reasoning;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.SplittableRandom;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Runs many independent localization problems in parallel.
+ *
+ * Each job either simulates a random path on its maze or takes the
+ * caller's evidence (and, if known, the true path), then scores filtering,
+ * smoothing and Viterbi against the true path. Jobs are spread over a
+ * work-stealing ForkJoinPool. Every job gets its own SplittableRandom, split
+ * from the batch seed in job order, so a batch gives the same results no
+ * matter how many threads run it or which thread picks up which job. Jobs on
+ * the same Maze object share one MazeModel.
+ */
+public class BatchSolver implements AutoCloseable {
+  public static class Job {
+    public final Maze maze;
+    public final int pathLength;
+    public final char[] evidence; // Given readings, or null to simulate a path
+    public final int[] states;    // True states of given readings, or null if unknown
+
+    /**
+     * A job that simulates a path of the given length
+     */
+    public Job(Maze maze, int pathLength) {
+      if (pathLength < 1)
+        throw new IllegalArgumentException("Path length must be positive, got " + pathLength);
+      this.maze = maze;
+      this.pathLength = pathLength;
+      this.evidence = null;
+      this.states = null;
+    }
+
+    /**
+     * A job on recorded readings. states are the true states (null if not
+     * known, in which case nothing is scored).
+     */
+    public Job(Maze maze, char[] evidence, int[] states) {
+      if (evidence.length < 1)
+        throw new IllegalArgumentException("Need at least one reading");
+      if (states != null && states.length != evidence.length)
+        throw new IllegalArgumentException(states.length + " states for " + evidence.length + " readings");
+      this.maze = maze;
+      this.pathLength = evidence.length;
+      this.evidence = evidence;
+      this.states = states;
+    }
+
+    /**
+     * A job on a whole recorded trace, with its true states if it has them
+     */
+    public static Job fromTrace(Maze maze, TraceFile.Reader trace) {
+      trace.check(maze);
+      if (trace.length > Integer.MAX_VALUE)
+        throw new IllegalArgumentException("Trace of " + trace.length + " readings is too long for a job");
+
+      char[] evidence = new char[(int) trace.length];
+      int[] states = trace.hasTruth ? new int[evidence.length] : null;
+      for (int step = 0; step < evidence.length; step++) {
+        evidence[step] = trace.reading(step);
+        if (states != null)
+          states[step] = trace.state(step);
+      }
+      return new Job(maze, evidence, states);
+    }
+  }
+
+  public static class Result {
+    public int[] path;      // True states (null if the job didn't know them)
+    public char[] evidence;
+    public int filteringHits; // Steps where the most likely filtered state was right
+    public int smoothingHits; // Steps where the most likely smoothed state was right
+    public int viterbiHits;   // Steps where the Viterbi path was right
+  }
+
+  public static class BatchResult {
+    public final Result[] results;
+    public final long steps;
+    public final long scoredSteps; // Steps whose true state was known
+    public final long elapsedNanos;
+
+    BatchResult(Result[] results, long elapsedNanos) {
+      long total = 0, scored = 0;
+      for (Result r : results) {
+        total += r.evidence.length;
+        if (r.path != null)
+          scored += r.path.length;
+      }
+
+      this.results = results;
+      this.steps = total;
+      this.scoredSteps = scored;
+      this.elapsedNanos = elapsedNanos;
+    }
+
+    public double jobsPerSecond() {
+      return results.length / (elapsedNanos / 1e9);
+    }
+
+    public double stepsPerSecond() {
+      return steps / (elapsedNanos / 1e9);
+    }
+
+    public String toString() {
+      long filtering = 0, smoothing = 0, viterbi = 0;
+      for (Result r : results) {
+        filtering += r.filteringHits;
+        smoothing += r.smoothingHits;
+        viterbi += r.viterbiHits;
+      }
+
+      String summary = String.format("%d jobs, %d steps in %.3f s (%.1f jobs/s, %.0f steps/s)%n",
+          results.length, steps, elapsedNanos / 1e9, jobsPerSecond(), stepsPerSecond());
+      if (scoredSteps == 0)
+        return summary + "Accuracy: no true states to score against";
+      return summary + String.format("Accuracy: filtering %.3f, smoothing %.3f, viterbi %.3f",
+          (double) filtering / scoredSteps, (double) smoothing / scoredSteps, (double) viterbi / scoredSteps);
+    }
+  }
+
+  private final ForkJoinPool pool;
+  // Maze does not override equals, so jobs share a model only if they share the Maze object
+  private final ConcurrentHashMap<Maze, MazeModel> models = new ConcurrentHashMap<>();
+
+  public BatchSolver() {
+    this(Runtime.getRuntime().availableProcessors());
+  }
+
+  public BatchSolver(int threads) {
+    pool = new ForkJoinPool(threads);
+  }
+
+  /**
+   * The shared model for a maze, built the first time it is asked for
+   */
+  public MazeModel modelFor(Maze maze) {
+    return models.computeIfAbsent(maze, m -> new MazeModel(m));
+  }
+
+  public BatchResult solve(List<Job> jobs, long seed) {
+    Job[] batch = jobs.toArray(new Job[0]);
+    Result[] results = new Result[batch.length];
+    SplittableRandom[] rngs = new SplittableRandom[batch.length];
+
+    // Split in job order, before any thread touches them
+    SplittableRandom root = new SplittableRandom(seed);
+    for (int i = 0; i < batch.length; i++)
+      rngs[i] = root.split();
+
+    long start = System.nanoTime();
+    if (batch.length > 0)
+      pool.invoke(new SolveTask(batch, rngs, results, 0, batch.length));
+    return new BatchResult(results, System.nanoTime() - start);
+  }
+
+  /**
+   * Simulates one path and scores all three solvers against it
+   */
+  public static Result run(MazeModel model, int pathLength, SplittableRandom rng) {
+    int[] path = model.maze.getPath(pathLength, rng);
+    return run(model, model.maze.getColorPath(path, rng), path);
+  }
+
+  /**
+   * Runs all three solvers on the given readings, scoring them against the
+   * true states if they are known (not null)
+   */
+  public static Result run(MazeModel model, char[] evidence, int[] states) {
+    int pathLength = evidence.length;
+    Result result = new Result();
+    result.path = states;
+    result.evidence = evidence;
+
+    OnlineFilter filter = model.newFilter();
+    for (int step = 0; step < pathLength; step++) {
+      filter.observe(evidence[step]);
+      if (states != null && filter.mostLikelyState() == states[step])
+        result.filteringHits++;
+    }
+
+    model.newSmoother().smoothCheckpointed(evidence, (step, distribution) -> {
+      if (states != null && Messages.argmax(distribution) == states[step])
+        result.smoothingHits++;
+    });
+
+    int[] best = model.newDecoder(pathLength).decode(model.prior, evidence);
+    if (states != null)
+      for (int step = 0; step < pathLength; step++)
+        if (best[step] == states[step])
+          result.viterbiHits++;
+
+    return result;
+  }
+
+  public void close() {
+    pool.shutdown();
+  }
+
+  @SuppressWarnings("serial") // Never serialized
+  private class SolveTask extends RecursiveAction {
+    private final Job[] jobs;
+    private final SplittableRandom[] rngs;
+    private final Result[] results;
+    private final int from, to;
+
+    SolveTask(Job[] jobs, SplittableRandom[] rngs, Result[] results, int from, int to) {
+      this.jobs = jobs;
+      this.rngs = rngs;
+      this.results = results;
+      this.from = from;
+      this.to = to;
+    }
+
+    protected void compute() {
+      if (to - from == 1) {
+        Job job = jobs[from];
+        MazeModel model = modelFor(job.maze);
+        results[from] = (job.evidence != null) ? run(model, job.evidence, job.states)
+                                               : run(model, job.pathLength, rngs[from]);
+        return;
+      }
+
+      int mid = (from + to) >>> 1;
+      invokeAll(new SolveTask(jobs, rngs, results, from, mid),
+                new SolveTask(jobs, rngs, results, mid, to));
+    }
+  }
+
+  /**
+   * Usage: BatchSolver mazeFile jobs pathLength [seed] [threads]
+   */
+  public static void main(String[] args) {
+    if (args.length < 3) {
+      System.err.println("Usage: BatchSolver mazeFile jobs pathLength [seed] [threads]");
+      System.exit(1);
+    }
+
+    Maze maze = Maze.readFromFile(args[0]);
+    if (maze == null) {
+      System.err.println("Could not read maze from " + args[0]);
+      System.exit(1);
+    }
+
+    int count = Integer.parseInt(args[1]);
+    int pathLength = Integer.parseInt(args[2]);
+    long seed = (args.length > 3) ? Long.parseLong(args[3]) : 0L;
+    int threads = (args.length > 4) ? Integer.parseInt(args[4])
+                                    : Runtime.getRuntime().availableProcessors();
+
+    List<Job> jobs = new ArrayList<Job>(count);
+    for (int i = 0; i < count; i++)
+      jobs.add(new Job(maze, pathLength));
+
+    try (BatchSolver solver = new BatchSolver(threads)) {
+      System.out.println(solver.solve(jobs, seed));
+    }
+  }
+}
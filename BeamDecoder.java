@@ -0,0 +1,363 @@
+package probabalistic_reasoning;
+
+import java.util.Arrays;
+
+/**
+ * Viterbi decoding over a beam: only the best beamWidth states (and only
+ * those within logThreshold of the best) survive each step.
+ *
+ * On a big maze almost every Viterbi score is negligible a few readings in,
+ * so a step only expands the survivors' legal moves, O(beamWidth *
+ * MAX_MOVES) instead of O(n), and backpointers are kept for survivors only.
+ * Candidates are merged through a state-to-slot table that is cleared as it
+ * is read, and the survivors are picked with a bounded min-heap.
+ *
+ * The survivors also carry their filtered probability (sum-product, in the
+ * same sweep), so each step can report how much of the beam's probability
+ * mass it pruned away. The path found is exact while nothing is pruned;
+ * with pruning it is the best path that stayed in the beam.
+ */
+public class BeamDecoder {
+  public final TransitionModel transitions;
+  public final SensorModel sensors;
+  public final int stateCount;
+  public final int beamWidth;      // Most states kept per step
+  public final double logThreshold; // Keep states within this much of the best log score
+
+  // Survivors of the current step (the first size entries)
+  private final int[] state;
+  private final double[] score;   // Viterbi log scores, rescaled so the best is 0
+  private final double[] alpha;   // Filtered probabilities, summing to 1
+  private int size;
+
+  // Candidates for the next step, indexed through slot[state] (-1 = none)
+  private final int[] slot;
+  private final int[] candState;
+  private final int[] candParent; // Index of the best predecessor among the survivors
+  private final double[] candScore;
+  private final double[] candAlpha;
+
+  // Min-heap of candidate indices, worst score at the root
+  private final int[] heap;
+
+  // Most survivors the history can hold (the largest array size)
+  private static final int MAX_HISTORY = Integer.MAX_VALUE - 8;
+
+  // Survivors of every step, flattened: step t is entries
+  // [stepStart[t], stepStart[t + 1]), with each entry's parent an index
+  // into the entries of step t - 1
+  private int[] historyState = new int[1 << 10];
+  private int[] historyParent = new int[1 << 10];
+  private int[] stepStart = new int[1 << 6];
+  private double[] pruned = new double[1 << 6]; // Mass pruned at each step
+  private int steps;
+
+  public BeamDecoder(TransitionModel transitions, SensorModel sensors, int beamWidth) {
+    this(transitions, sensors, beamWidth, Double.POSITIVE_INFINITY);
+  }
+
+  public BeamDecoder(TransitionModel transitions, SensorModel sensors, int beamWidth, double logThreshold) {
+    if (beamWidth < 1)
+      throw new IllegalArgumentException("Beam must hold at least one state, got " + beamWidth);
+    if (!(logThreshold >= 0.0))
+      throw new IllegalArgumentException("Threshold must be non-negative, got " + logThreshold);
+
+    this.transitions = transitions;
+    this.sensors = sensors;
+    this.stateCount = transitions.stateCount;
+    this.beamWidth = Math.min(beamWidth, stateCount);
+    this.logThreshold = logThreshold;
+
+    int candidates = (int) Math.min(stateCount, (long) this.beamWidth * TransitionModel.MAX_MOVES);
+    state = new int[this.beamWidth];
+    score = new double[this.beamWidth];
+    alpha = new double[this.beamWidth];
+    slot = new int[stateCount];
+    Arrays.fill(slot, -1);
+    candState = new int[candidates];
+    candParent = new int[candidates];
+    candScore = new double[candidates];
+    candAlpha = new double[candidates];
+    heap = new int[this.beamWidth];
+  }
+
+  /**
+   * Starts a new decode: the first reading is taken after one move from
+   * prior. Every state is a candidate, streamed through the heap one at a
+   * time.
+   */
+  public void start(double[] prior, char color) {
+    int offset = sensors.colorIndex(color) * stateCount;
+    int heapSize = 0, count = 0;
+    double total = 0.0;
+
+    steps = 0;
+    stepStart[0] = 0;
+    for (int s = 0; s < stateCount; s++) {
+      double predicted = 0.0;
+      for (int a = 0; a < TransitionModel.MAX_MOVES; a++) {
+        int from = transitions.prev[s * TransitionModel.MAX_MOVES + a];
+        if (from >= 0)
+          predicted += prior[from] * transitions.moveProb[from];
+      }
+      double p = predicted * sensors.likelihood[offset + s];
+      if (p == 0.0)
+        continue;
+      total += p;
+      count++;
+
+      // The candidate arrays are smaller than the maze, so a state only
+      // takes a candidate when it makes the heap, replacing the worst
+      double v = Math.log(predicted) + sensors.logLikelihood[offset + s];
+      if (heapSize < beamWidth) {
+        candidate(heapSize, s, v, p);
+        heap[heapSize] = heapSize;
+        siftUp(heapSize++);
+      } else if (v > candScore[heap[0]]) {
+        candidate(heap[0], s, v, p);
+        siftDown(0, heapSize);
+      }
+    }
+
+    survive(heapSize, count, total);
+  }
+
+  /**
+   * Extends the best path into each survivor's moves by one move and one
+   * reading, and prunes back to the beam
+   */
+  public void step(char color) {
+    int offset = sensors.colorIndex(color) * stateCount;
+    int count = 0;
+
+    if (steps == 0)
+      throw new IllegalStateException("start() must be called before step()");
+
+    // Expand the survivors' legal moves, keeping the best parent of each
+    // state reached (first found on ties) and summing its predicted mass
+    for (int i = 0; i < size; i++) {
+      int from = state[i];
+      double v = score[i] + transitions.logMoveProb[from];
+      double p = alpha[i] * transitions.moveProb[from];
+      for (int a = 0; a < TransitionModel.MAX_MOVES; a++) {
+        int to = transitions.next[from * TransitionModel.MAX_MOVES + a];
+        if (to < 0)
+          continue;
+        int c = slot[to];
+        if (c < 0) {
+          c = count++;
+          slot[to] = c;
+          candState[c] = to;
+          candParent[c] = i;
+          candScore[c] = v;
+          candAlpha[c] = p;
+        } else {
+          if (v > candScore[c]) {
+            candScore[c] = v;
+            candParent[c] = i;
+          }
+          candAlpha[c] += p;
+        }
+      }
+    }
+
+    // Apply the reading, clear the slots and keep the best beamWidth
+    double total = 0.0;
+    int heapSize = 0;
+    for (int c = 0; c < count; c++) {
+      int s = candState[c];
+      slot[s] = -1;
+      candScore[c] += sensors.logLikelihood[offset + s];
+      candAlpha[c] *= sensors.likelihood[offset + s];
+      total += candAlpha[c];
+
+      if (heapSize < beamWidth) {
+        heap[heapSize++] = c;
+        siftUp(heapSize - 1);
+      } else if (candScore[c] > candScore[heap[0]]) {
+        heap[0] = c;
+        siftDown(0, heapSize);
+      }
+    }
+
+    survive(heapSize, count, total);
+  }
+
+  /**
+   * Runs a whole evidence sequence and returns the best path found
+   */
+  public int[] decode(double[] prior, char[] evidence) {
+    if (evidence.length == 0)
+      throw new IllegalArgumentException("No readings to decode");
+    start(prior, evidence[0]);
+    for (int step = 1; step < evidence.length; step++)
+      step(evidence[step]);
+    return bestPath();
+  }
+
+  public int steps() {
+    return steps;
+  }
+
+  /**
+   * Number of states in the beam after the last step
+   */
+  public int survivors() {
+    return size;
+  }
+
+  /**
+   * The state at the end of the best path so far
+   */
+  public int bestState() {
+    return state[best()];
+  }
+
+  /**
+   * Probability of the best path relative to the best path into every
+   * other surviving state, as ViterbiDecoder.bestProbability()
+   */
+  public double bestProbability() {
+    if (steps == 0)
+      throw new IllegalStateException("Nothing decoded yet");
+    double sum = 0.0;
+    for (int i = 0; i < size; i++)
+      sum += Math.exp(score[i]); // Scores are rescaled so the best is 0
+    return 1.0 / sum;
+  }
+
+  /**
+   * Share of the filtered probability mass that was pruned at the given
+   * step (0 if the beam held every state reached)
+   */
+  public double prunedMass(int step) {
+    if (step < 0 || step >= steps)
+      throw new IndexOutOfBoundsException("Step " + step + " of " + steps);
+    return pruned[step];
+  }
+
+  /**
+   * Share of the probability mass pruned over the whole decode so far:
+   * 1 - the product over steps of the share each step kept
+   */
+  public double prunedMass() {
+    double kept = 1.0;
+    for (int step = 0; step < steps; step++)
+      kept *= 1.0 - pruned[step];
+    return 1.0 - kept;
+  }
+
+  /**
+   * Follows the stored backpointers from the best final survivor
+   */
+  public int[] bestPath() {
+    int best = best(); // Throws before anything is decoded
+    int[] path = new int[steps];
+    int entry = stepStart[steps - 1] + best;
+
+    for (int step = steps - 1; step >= 0; step--) {
+      path[step] = historyState[entry];
+      if (step > 0)
+        entry = stepStart[step - 1] + historyParent[entry];
+    }
+    return path;
+  }
+
+  // Turns the heap's candidates into the survivors (dropping any not within
+  // logThreshold of the best), rescales them and appends them to the
+  // history. There were count candidates in all, of total mass.
+  private void survive(int heapSize, int count, double total) {
+    double max = Double.NEGATIVE_INFINITY;
+    for (int h = 0; h < heapSize; h++)
+      max = Math.max(max, candScore[heap[h]]);
+    if (max == Double.NEGATIVE_INFINITY)
+      throw new IllegalStateException("Evidence is impossible under the model");
+
+    int base = stepStart[steps];
+    grow((long) base + heapSize);
+    size = 0;
+    double kept = 0.0;
+    for (int h = 0; h < heapSize; h++) {
+      int c = heap[h];
+      if (candScore[c] < max - logThreshold)
+        continue;
+      state[size] = candState[c];
+      score[size] = candScore[c] - max;
+      alpha[size] = candAlpha[c];
+      kept += candAlpha[c];
+      historyState[base + size] = candState[c];
+      historyParent[base + size] = candParent[c];
+      size++;
+    }
+
+    for (int i = 0; i < size; i++)
+      alpha[i] /= kept;
+    pruned[steps] = (size == count) ? 0.0 : Math.max(0.0, 1.0 - kept / total);
+    steps++;
+    stepStart[steps] = base + size;
+  }
+
+  private void candidate(int c, int s, double v, double p) {
+    candState[c] = s;
+    candParent[c] = -1;
+    candScore[c] = v;
+    candAlpha[c] = p;
+  }
+
+  // Index among the survivors of the best score (0 after rescaling)
+  private int best() {
+    if (steps == 0)
+      throw new IllegalStateException("Nothing decoded yet");
+    int best = 0;
+    for (int i = 1; i < size; i++)
+      if (score[i] > score[best])
+        best = i;
+    return best;
+  }
+
+  // Room for entries up to the given end, and for one more step. The history
+  // is indexed by int, so it holds at most MAX_HISTORY survivors in all.
+  private void grow(long end) {
+    if (end > MAX_HISTORY)
+      throw new IllegalStateException("Beam history would need " + end + " entries after " + steps
+          + " steps, more than " + MAX_HISTORY + "; use a narrower beam or a shorter trace");
+    if (end > historyState.length) {
+      int capacity = (int) Math.min(MAX_HISTORY, Math.max(end, 2L * historyState.length));
+      historyState = Arrays.copyOf(historyState, capacity);
+      historyParent = Arrays.copyOf(historyParent, capacity);
+    }
+    if (steps + 2 > stepStart.length) {
+      int capacity = (int) Math.min(MAX_HISTORY, 2L * stepStart.length);
+      stepStart = Arrays.copyOf(stepStart, capacity);
+      pruned = Arrays.copyOf(pruned, capacity);
+    }
+  }
+
+  private void siftUp(int h) {
+    int c = heap[h];
+    while (h > 0) {
+      int parent = (h - 1) >>> 1;
+      if (candScore[heap[parent]] <= candScore[c])
+        break;
+      heap[h] = heap[parent];
+      h = parent;
+    }
+    heap[h] = c;
+  }
+
+  private void siftDown(int h, int heapSize) {
+    int c = heap[h];
+    while (true) {
+      int child = 2 * h + 1;
+      if (child >= heapSize)
+        break;
+      if (child + 1 < heapSize && candScore[heap[child + 1]] < candScore[heap[child]])
+        child++;
+      if (candScore[c] <= candScore[heap[child]])
+        break;
+      heap[h] = heap[child];
+      h = child;
+    }
+    heap[h] = c;
+  }
+}
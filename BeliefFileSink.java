@@ -0,0 +1,98 @@
+package probabalistic_reasoning;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+/**
+ * Writes every filtered and smoothed belief to a file, through one buffered
+ * stream.
+ *
+ * CSV: a header line "kind,step,actual,s0,s1,...", then one line per belief
+ * with kind "f" (filtered) or "s" (smoothed).
+ *
+ * BINARY (big-endian): int magic, int stateCount, then one record per
+ * belief: byte kind (0 filtered, 1 smoothed), int step, int actual state,
+ * stateCount doubles.
+ */
+public class BeliefFileSink implements ResultSink {
+  public enum Format { CSV, BINARY }
+
+  public static final int MAGIC = 0x4d5a4246; // "MZBF"
+
+  public final Format format;
+
+  private final DataOutputStream out;
+  private final StringBuilder line = new StringBuilder();
+  private boolean started;
+
+  public BeliefFileSink(Path file, Format format) throws IOException {
+    this.format = format;
+    this.out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(file), 1 << 16));
+  }
+
+  /**
+   * Picks BINARY for a .bin file and CSV for anything else
+   */
+  public static BeliefFileSink forFile(Path file) throws IOException {
+    boolean binary = file.getFileName().toString().endsWith(".bin");
+    return new BeliefFileSink(file, binary ? Format.BINARY : Format.CSV);
+  }
+
+  public void filtered(int step, int actualState, double[] belief) {
+    write(0, step, actualState, belief);
+  }
+
+  public void smoothed(int step, int actualState, double[] belief) {
+    write(1, step, actualState, belief);
+  }
+
+  public void close() throws IOException {
+    out.close();
+  }
+
+  private void write(int kind, int step, int actualState, double[] belief) {
+    try {
+      if (!started) {
+        header(belief.length);
+        started = true;
+      }
+
+      if (format == Format.BINARY) {
+        out.writeByte(kind);
+        out.writeInt(step);
+        out.writeInt(actualState);
+        for (double p : belief)
+          out.writeDouble(p);
+        return;
+      }
+
+      line.setLength(0);
+      line.append(kind == 0 ? 'f' : 's').append(',').append(step).append(',').append(actualState);
+      for (double p : belief)
+        line.append(',').append(p);
+      line.append('\n');
+      out.writeBytes(line.toString());
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+  }
+
+  private void header(int stateCount) throws IOException {
+    if (format == Format.BINARY) {
+      out.writeInt(MAGIC);
+      out.writeInt(stateCount);
+      return;
+    }
+
+    line.setLength(0);
+    line.append("kind,step,actual");
+    for (int s = 0; s < stateCount; s++)
+      line.append(",s").append(s);
+    line.append('\n');
+    out.writeBytes(line.toString());
+  }
+}
@@ -0,0 +1,30 @@
+package probabalistic_reasoning;
+
+import java.util.concurrent.RecursiveAction;
+import java.util.function.IntConsumer;
+
+/**
+ * Runs body(i) for every i in [from, to) on a ForkJoinPool, splitting the
+ * range in halves so idle threads can steal work
+ */
+@SuppressWarnings("serial") // Never serialized; body isn't serializable anyway
+class ChunkTask extends RecursiveAction {
+  private final IntConsumer body;
+  private final int from, to;
+
+  ChunkTask(IntConsumer body, int from, int to) {
+    this.body = body;
+    this.from = from;
+    this.to = to;
+  }
+
+  protected void compute() {
+    if (to - from == 1) {
+      body.accept(from);
+      return;
+    }
+
+    int mid = (from + to) >>> 1;
+    invokeAll(new ChunkTask(body, from, mid), new ChunkTask(body, mid, to));
+  }
+}
@@ -0,0 +1,249 @@
+package probabalistic_reasoning;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Human-readable results, written through one buffered writer. Numbers are
+ * formatted by hand into a reused StringBuilder, so a FULL dump costs one
+ * write per line rather than one print (and one DecimalFormat) per cell.
+ */
+public class ConsoleSink implements ResultSink {
+  public final Verbosity level;
+
+  private final Writer out;
+  private final StringBuilder line = new StringBuilder();
+  private Maze m;
+  private int[] realPath;
+  private int filteringHits, smoothingHits, steps;
+  private boolean smoothing; // Whether any smoothed beliefs were reported
+  private double totalDistance;
+  private int approximations;
+  private double totalPruned, maxPruned;
+  private int prunedSteps;
+
+  public ConsoleSink(Verbosity level) {
+    this(level, System.out);
+  }
+
+  public ConsoleSink(Verbosity level, OutputStream stream) {
+    this.level = level;
+    this.out = new BufferedWriter(new OutputStreamWriter(stream, StandardCharsets.UTF_8), 1 << 16);
+  }
+
+  public void maze(Maze m) {
+    this.m = m;
+    if (level == Verbosity.FULL)
+      write(m.toString() + "\n");
+  }
+
+  public void path(int[] states, char[] evidence, char[] correctColors) {
+    realPath = states;
+    if (level != Verbosity.FULL)
+      return;
+
+    for (int i = 0; i < states.length; i++) {
+      line.setLength(0);
+      line.append("Step ").append(i + 1).append(": (").append(m.stateX(states[i])).append(", ").append(m.stateY(states[i]))
+          .append(")\tE = ").append(evidence[i]).append(" (correct = ").append(correctColors[i]).append(")\n");
+      write(line);
+    }
+  }
+
+  public void model(MazeModel model) {
+    if (level != Verbosity.FULL)
+      return;
+
+    double[] message = new double[model.stateCount];
+    for (char color : model.sensors.colors) {
+      write("Sensor Model (" + color + "):\n");
+      model.sensors.likelihoods(color, message);
+      printMessage(message);
+    }
+
+    write("Transition Table: \n");
+    printTransitions(model.transitions, false);
+
+    write("Transpose of Transition Table: \n");
+    printTransitions(model.transitions, true);
+
+    Arrays.fill(message, 1.0);
+    write("\nInitial Condition (Backward):\n");
+    printMessage(message);
+
+    write("\nInitial Condition (Forward):\n");
+    printMessage(model.prior);
+  }
+
+  public void filtered(int step, int actualState, double[] belief) {
+    estimated(step, actualState, Messages.argmax(belief));
+    if (level != Verbosity.FULL)
+      return;
+
+    write("\nFiltered Distribuition at step " + (step+1) + ": \n");
+    write("(Real location is state " + actualState + ")\n");
+    printMessage(belief);
+  }
+
+  public boolean wantsBeliefs() {
+    return level == Verbosity.FULL;
+  }
+
+  public void estimated(int step, int actualState, int state) {
+    if (state == actualState)
+      filteringHits++;
+    steps = Math.max(steps, step + 1);
+  }
+
+  public void smoothed(int step, int actualState, double[] belief) {
+    if (Messages.argmax(belief) == actualState)
+      smoothingHits++;
+    smoothing = true;
+    steps = Math.max(steps, step + 1);
+    if (level != Verbosity.FULL)
+      return;
+
+    write("\nSmoothed Distribuition at step " + (step+1) + ": \n");
+    write("(Real location is state " + actualState + ")\n");
+    printMessage(belief);
+  }
+
+  public void approximation(int step, double distance) {
+    totalDistance += distance;
+    approximations++;
+    if (level == Verbosity.FULL)
+      write("(Total variation from the exact distribution: " + distance + ")\n");
+  }
+
+  public void pruned(int step, double mass) {
+    totalPruned += mass;
+    maxPruned = Math.max(maxPruned, mass);
+    prunedSteps++;
+    if (level == Verbosity.FULL)
+      write("(Beam pruned " + mass + " of the probability mass at step " + (step+1) + ")\n");
+  }
+
+  public void bestPath(int[] states, double probability) {
+    if (level == Verbosity.SILENT)
+      return;
+
+    write("Found optimal path with probability " + probability + ":\n");
+    write(Arrays.toString(states) + "\n");
+
+    if (level == Verbosity.SUMMARY && realPath != null) {
+      int hits = 0;
+      for (int i = 0; i < states.length; i++)
+        if (states[i] == realPath[i])
+          hits++;
+      write("Viterbi path matches the real path at " + hits + " of " + states.length + " steps\n");
+    }
+    flush();
+  }
+
+  public void close() throws IOException {
+    if (level == Verbosity.SUMMARY && steps > 0) {
+      write("Most likely filtered state was right at " + filteringHits + " of " + steps + " steps\n");
+      if (smoothing)
+        write("Most likely smoothed state was right at " + smoothingHits + " of " + steps + " steps\n");
+    }
+    if (level == Verbosity.SUMMARY && approximations > 0)
+      write("Mean total variation from the exact filter: " + (totalDistance / approximations) + "\n");
+    if (level == Verbosity.SUMMARY && prunedSteps > 0)
+      write("Beam pruned a mean " + (totalPruned / prunedSteps) + " and at most " + maxPruned
+          + " of the probability mass per step\n");
+    out.flush(); // Don't close the stream; it is usually System.out
+  }
+
+  /**
+   * Prints a message laid out like the maze (bottom row first), with
+   * walls shown as #
+   */
+  public void printMessage(double[] message) {
+    int state;
+    line.setLength(0);
+    line.append('[');
+    for (int y = 0; y < m.height; y++) {
+      line.append("\n\t");
+      for (int x = 0; x < m.width; x++) {
+        state = m.XYtoState(x, y);
+        if (state < 0)
+          line.append("  #  , ");
+        else
+          appendFixed(line, message[state]).append(", ");
+      }
+      write(line);
+      line.setLength(0);
+    }
+    line.append("\n]\n");
+    write(line);
+  }
+
+  /**
+   * Prints the transition model (or its transpose) as a dense table
+   */
+  public void printTransitions(TransitionModel transitions, boolean transpose) {
+    double[] row = new double[transitions.stateCount];
+    write("[");
+    for (int y = 0; y < transitions.stateCount; y++) {
+      if (transpose)
+        transitions.column(y, row);
+      else
+        transitions.row(y, row);
+
+      line.setLength(0);
+      line.append('\t');
+      for (int x = 0; x < row.length; x++)
+        appendFixed(line, row[x]).append(", ");
+      line.append('\n');
+      write(line);
+    }
+    write("]\n\n");
+  }
+
+  public void flush() {
+    try {
+      out.flush();
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+  }
+
+  // Fixed to 3 places, rounding the exact value of the double half-even like
+  // DecimalFormat("#0.000"), without the per-call cost. The fma residuals are
+  // exact in sign, so rounding in the product never moves a value across a
+  // boundary. (DecimalFormat also prints -0.000 for tiny negatives and turns
+  // 0.0005, a shade above the tie, into 0.000; neither happens here.)
+  static StringBuilder appendFixed(StringBuilder sb, double value) {
+    double abs = Math.abs(value);
+    double floor = Math.floor(abs * 1000.0);
+    if (Math.fma(abs, 1000.0, -floor) < 0.0) // The product rounded up to floor
+      floor -= 1.0;
+    double half = Math.fma(abs, 1000.0, -(floor + 0.5));
+    long thousandths = (long) floor;
+    if (half > 0.0 || (half == 0.0 && (thousandths & 1) != 0))
+      thousandths++;
+    if (value < 0 && thousandths != 0)
+      sb.append('-');
+    sb.append(thousandths / 1000).append('.');
+    long frac = thousandths % 1000;
+    if (frac < 100)
+      sb.append('0');
+    if (frac < 10)
+      sb.append('0');
+    return sb.append(frac);
+  }
+
+  private void write(CharSequence text) {
+    try {
+      out.append(text);
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+  }
+}
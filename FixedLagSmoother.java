@@ -0,0 +1,92 @@
+package probabalistic_reasoning;
+
+import java.util.Arrays;
+
+/**
+ * Streaming fixed-lag smoother built on an OnlineFilter.
+ *
+ * Keeps the last lag + 1 forward messages and readings in ring buffers. Once
+ * lag readings past a step have arrived, that step's smoothed distribution is
+ * produced by running the backward message over the window. Memory is
+ * O(lag * n) no matter how long the trace gets, and each observation costs
+ * O(lag * n).
+ */
+public class FixedLagSmoother {
+  public final OnlineFilter filter;
+  public final int lag;
+  public final int stateCount;
+
+  private final double[][] forwardRing; // Forward message of step t at t % (lag + 1)
+  private final char[] evidenceRing;    // Reading of step t at t % (lag + 1)
+
+  private final double[] backward;
+  private final double[] scratch;
+  private final double[] smoothed;
+
+  public FixedLagSmoother(TransitionModel transitions, SensorModel sensors, double[] prior, int lag) {
+    if (lag < 0)
+      throw new IllegalArgumentException("Lag must not be negative, got " + lag);
+
+    this.filter = new OnlineFilter(transitions, sensors, prior);
+    this.lag = lag;
+    this.stateCount = transitions.stateCount;
+
+    forwardRing = new double[lag + 1][stateCount];
+    evidenceRing = new char[lag + 1];
+    backward = new double[stateCount];
+    scratch = new double[stateCount];
+    smoothed = new double[stateCount];
+  }
+
+  /**
+   * Takes one reading. Returns the smoothed distribution for step
+   * steps() - lag - 1 (counting from 0), or null while fewer than lag + 1
+   * readings have arrived. The returned array is overwritten by later calls.
+   */
+  public double[] observe(char color) {
+    int step = filter.steps();
+    double[] belief = filter.observe(color);
+
+    System.arraycopy(belief, 0, forwardRing[step % (lag + 1)], 0, stateCount);
+    evidenceRing[step % (lag + 1)] = color;
+
+    if (step < lag)
+      return null;
+    return smoothed(step - lag);
+  }
+
+  /**
+   * Smoothed distribution of an earlier step, given every reading so far.
+   * Only the last lag + 1 steps are still available; use this to flush the
+   * tail of a trace once the stream ends.
+   */
+  public double[] smoothed(int step) {
+    int last = filter.steps() - 1;
+
+    if (step < 0 || step > last || step < last - lag)
+      throw new IllegalArgumentException("Step " + step + " is outside the window ["
+          + Math.max(0, last - lag) + ", " + last + "]");
+
+    // b_t+1:t = 1, then b_k+1:t = TransitionModel * SensorModel_k+1 * b_k+2:t
+    Arrays.fill(backward, 1.0);
+    for (int k = last; k > step; k--) {
+      System.arraycopy(backward, 0, scratch, 0, stateCount);
+      filter.sensors.observe(evidenceRing[k % (lag + 1)], scratch);
+      filter.transitions.propagateBack(scratch, backward);
+      Messages.normalize(backward); // Only the shape matters; keeps it in range
+    }
+
+    double[] forward = forwardRing[step % (lag + 1)];
+    for (int state = 0; state < stateCount; state++)
+      smoothed[state] = forward[state] * backward[state];
+    Messages.normalize(smoothed);
+    return smoothed;
+  }
+
+  /**
+   * Number of readings taken so far
+   */
+  public int steps() {
+    return filter.steps();
+  }
+}
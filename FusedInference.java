@@ -0,0 +1,194 @@
+package probabalistic_reasoning;
+
+import java.util.Arrays;
+
+/**
+ * Filtering, smoothing and Viterbi decoding of one evidence sequence from a
+ * single forward sweep and a single backward sweep.
+ *
+ * Filtering and Viterbi scan exactly the same predecessors of each state,
+ * so the forward sweep reads each neighbor-table entry once and updates
+ * the sum-product (filtered) and max-product (Viterbi) messages together.
+ * The filtered messages it keeps are what the backward sweep needs for
+ * smoothing, so nothing is computed twice. The results are the same as
+ * OnlineFilter, Smoother and ViterbiDecoder give separately.
+ */
+public class FusedInference {
+  /**
+   * Everything inferred from one evidence sequence. The arrays belong to
+   * the caller.
+   */
+  public static final class Result {
+    public final double[][] filtered;   // filtered[t] = P(X_t | e_1:t)
+    public final double[][] smoothed;   // smoothed[t] = P(X_t | e_1:T)
+    public final int[] bestPath;        // Most likely state sequence
+    public final double bestProbability; // As ViterbiDecoder.bestProbability()
+    public final double logLikelihood;  // log P(e_1:T)
+
+    Result(double[][] filtered, double[][] smoothed, int[] bestPath,
+           double bestProbability, double logLikelihood) {
+      this.filtered = filtered;
+      this.smoothed = smoothed;
+      this.bestPath = bestPath;
+      this.bestProbability = bestProbability;
+      this.logLikelihood = logLikelihood;
+    }
+  }
+
+  public final TransitionModel transitions;
+  public final SensorModel sensors;
+  public final double[] prior;
+  public final int stateCount;
+  public final int maxSteps;
+
+  private double[] score;     // Viterbi log scores, rescaled so the best is 0
+  private double[] nextScore;
+  private final BackpointerStore backchains; // Best previous state of each state at each step
+  private final long[] codes; // The current step's packed codes
+  private final double[] backward;
+  private final double[] scratch;
+
+  public FusedInference(TransitionModel transitions, SensorModel sensors, double[] prior, int maxSteps) {
+    this.transitions = transitions;
+    this.sensors = sensors;
+    this.prior = prior;
+    this.stateCount = transitions.stateCount;
+    this.maxSteps = maxSteps;
+
+    score = new double[stateCount];
+    nextScore = new double[stateCount];
+    backchains = BackpointerStore.inMemory(stateCount, maxSteps);
+    codes = new long[backchains.wordsPerStep];
+    backward = new double[stateCount];
+    scratch = new double[stateCount];
+  }
+
+  /**
+   * Runs both sweeps over the evidence. Sequences longer than maxSteps are
+   * rejected, since the backpointers are allocated up front.
+   */
+  public Result run(char[] evidence) {
+    int length = evidence.length;
+    if (length == 0)
+      throw new IllegalArgumentException("Need at least one reading");
+    if (length > maxSteps)
+      throw new IllegalArgumentException("Sequence of " + length + " readings is longer than " + maxSteps);
+
+    double[][] filtered = new double[length][stateCount];
+    double[][] smoothed = new double[length][stateCount];
+    double logLikelihood = 0.0;
+
+    // Forward sweep: filtered messages and Viterbi scores together
+    double[] last = prior;
+    for (int step = 0; step < length; step++) {
+      long start = Instrumentation.on ? Instrumentation.begin() : 0L;
+      double normalizer = forward(last, evidence[step], step, filtered[step]);
+      logLikelihood += Math.log(normalizer);
+      last = filtered[step];
+      if (start != 0L)
+        Instrumentation.step(Metrics.Phase.FUSED, start, step, last, normalizer);
+    }
+
+    int[] bestPath = bestPath(length);
+    double bestProbability = 0.0;
+    for (int state = 0; state < stateCount; state++)
+      bestProbability += Math.exp(score[state]);
+    bestProbability = 1.0 / bestProbability;
+
+    // Backward sweep: b_k:t = TransitionModel * SensorModel_k * b_k+1:t
+    Arrays.fill(backward, 1.0);
+    for (int step = length - 1; step >= 0; step--) {
+      long start = Instrumentation.on ? Instrumentation.begin() : 0L;
+      double[] f = filtered[step];
+      double[] s = smoothed[step];
+      for (int state = 0; state < stateCount; state++)
+        s[state] = f[state] * backward[state];
+      double normalizer = Messages.normalize(s);
+
+      System.arraycopy(backward, 0, scratch, 0, stateCount);
+      sensors.observe(evidence[step], scratch);
+      transitions.propagateBack(scratch, backward);
+      Messages.normalize(backward); // Only the shape matters; keeps it in range
+      if (start != 0L)
+        Instrumentation.step(Metrics.Phase.SMOOTH, start, step, s, normalizer);
+    }
+
+    return new Result(filtered, smoothed, bestPath, bestProbability, logLikelihood);
+  }
+
+  // One step of both forward recursions from the filtered message 'last':
+  //   result = alpha * SensorModel * TransitionTranspose * last
+  //   score  = max over predecessors of score + log P(move), + log SensorModel
+  // Returns the filtering normalizer, P(e_t | e_1:t-1).
+  private double forward(double[] last, char color, int step, double[] result) {
+    int offset = sensors.colorIndex(color) * stateCount;
+    double[] swap;
+
+    Arrays.fill(codes, 0L);
+    for (int state = 0; state < stateCount; state++) {
+      double sum = 0.0;
+      double maxVal = Double.NEGATIVE_INFINITY;
+      int maxCode = 0;
+
+      for (int a = 0; a < TransitionModel.MAX_MOVES; a++) {
+        int from = transitions.prev[state * TransitionModel.MAX_MOVES + a];
+        if (from < 0)
+          continue;
+
+        sum += last[from] * transitions.moveProb[from];
+        double tempVal = score[from] + transitions.logMoveProb[from];
+        if (tempVal > maxVal) {
+          maxVal = tempVal;
+          maxCode = a;
+        }
+      }
+
+      if (step == 0) {
+        // The first reading is taken after one move from the prior
+        nextScore[state] = Math.log(sum) + sensors.logLikelihood[offset + state];
+      } else {
+        nextScore[state] = maxVal + sensors.logLikelihood[offset + state];
+        codes[state / BackpointerStore.PER_WORD] |=
+            (long) maxCode << (BackpointerStore.BITS * (state % BackpointerStore.PER_WORD));
+      }
+      result[state] = sum * sensors.likelihood[offset + state];
+    }
+
+    if (step > 0)
+      backchains.put(step, codes);
+
+    swap = score;
+    score = nextScore;
+    nextScore = swap;
+    rescale();
+
+    return Messages.normalize(result);
+  }
+
+  // Follows the backchains from the best final state
+  private int[] bestPath(int length) {
+    int[] path = new int[length];
+    int currState = Messages.argmax(score);
+
+    path[length - 1] = currState;
+    for (int step = length - 1; step > 0; step--) {
+      currState = transitions.prev[currState * TransitionModel.MAX_MOVES + backchains.code(step, currState)];
+      path[step - 1] = currState;
+    }
+    return path;
+  }
+
+  // Shift the scores so the best is 0; keeps them in range on long traces
+  private void rescale() {
+    double max = Double.NEGATIVE_INFINITY;
+    for (int state = 0; state < stateCount; state++)
+      if (score[state] > max)
+        max = score[state];
+
+    if (max == Double.NEGATIVE_INFINITY)
+      throw new IllegalStateException("Evidence is impossible under the model");
+
+    for (int state = 0; state < stateCount; state++)
+      score[state] -= max;
+  }
+}
@@ -0,0 +1,78 @@
+package probabalistic_reasoning;
+
+/**
+ * Streaming filter that keeps its message in the padded grid layout of a
+ * GridStencil and predicts with the stencil instead of the neighbor tables.
+ * Same results as OnlineFilter (up to rounding), but every pass is a flat
+ * sweep over memory, so large mazes run at memory bandwidth.
+ */
+public class GridFilter {
+  public final GridStencil stencil;
+
+  private double[] belief;
+  private double[] next;
+  private final double[] tmp;
+  private int steps;
+
+  public GridFilter(MazeModel model) {
+    this(GridStencil.create(model), model.prior);
+  }
+
+  public GridFilter(GridStencil stencil, double[] prior) {
+    this.stencil = stencil;
+    belief = new double[stencil.size];
+    next = new double[stencil.size];
+    tmp = new double[stencil.size];
+    reset(prior);
+  }
+
+  /**
+   * Forgets all readings and starts again from the given distribution over states
+   */
+  public void reset(double[] prior) {
+    stencil.toGrid(prior, belief);
+    steps = 0;
+  }
+
+  /**
+   * Takes one move and one reading. The new filtered message is returned in
+   * the padded layout; it is owned by the filter and overwritten by the next
+   * call.
+   */
+  public double[] observe(char color) {
+    double sum;
+    double[] swap;
+
+    // f_1:t+1 = alpha * SensorModel_t+1 * TransitionTranspose * f_1:t
+    stencil.weigh(belief, tmp, 0, stencil.height + 2);
+    sum = stencil.gather(tmp, next, stencil.colorIndex(color), 0, stencil.height);
+    if (sum == 0.0)
+      throw new IllegalStateException("Evidence is impossible under the model");
+    stencil.scale(next, 1.0 / sum, 0, stencil.height);
+
+    swap = belief;
+    belief = next;
+    next = swap;
+
+    steps++;
+    return belief;
+  }
+
+  /**
+   * The current message in the padded layout (owned by the filter)
+   */
+  public double[] grid() {
+    return belief;
+  }
+
+  /**
+   * Copies the current message out as a distribution over states
+   */
+  public void belief(double[] states) {
+    stencil.toStates(belief, states);
+  }
+
+  public int steps() {
+    return steps;
+  }
+}
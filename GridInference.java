@@ -0,0 +1,121 @@
+package probabalistic_reasoning;
+
+import java.util.Arrays;
+
+/**
+ * Filtering, smoothing and Viterbi decoding of one evidence sequence on the
+ * grid stencil, with every step spread over the bands of a BandEngine. Gives
+ * the same results as FusedInference up to rounding (the stencil sums
+ * neighbors in a different order), and the same Viterbi path.
+ *
+ * All per-step buffers are allocated up front; a run only allocates the
+ * arrays it returns and the forward messages smoothing needs.
+ */
+public class GridInference {
+  public final BandEngine engine;
+  public final GridStencil stencil;
+  public final int stateCount;
+  public final int maxSteps;
+
+  private final double[] prior;         // Padded
+  private double[] score, nextScore;    // Viterbi log scores (padded, -infinity off the grid)
+  private final byte[][] backchains;    // backchains[step][cell] = index into moveOffset
+  private double[] backward, nextBackward;
+
+  public GridInference(BandEngine engine, double[] prior, int maxSteps) {
+    this.engine = engine;
+    this.stencil = engine.stencil;
+    this.stateCount = prior.length;
+    this.maxSteps = maxSteps;
+
+    this.prior = new double[stencil.size];
+    stencil.toGrid(prior, this.prior);
+    score = new double[stencil.size];
+    nextScore = new double[stencil.size];
+    backchains = new byte[maxSteps][stencil.size];
+    backward = new double[stencil.size];
+    nextBackward = new double[stencil.size];
+  }
+
+  /**
+   * Runs the forward and backward sweeps over the evidence
+   */
+  public FusedInference.Result run(char[] evidence) {
+    int length = evidence.length;
+    if (length == 0)
+      throw new IllegalArgumentException("Need at least one reading");
+    if (length > maxSteps)
+      throw new IllegalArgumentException("Sequence of " + length + " readings is longer than " + maxSteps);
+
+    double[][] forward = new double[length][stencil.size];
+    double[][] filtered = new double[length][stateCount];
+    double[][] smoothed = new double[length][stateCount];
+    double logLikelihood = 0.0;
+    double[] swap;
+
+    // Forward sweep: filtered messages and Viterbi scores
+    Arrays.fill(score, Double.NEGATIVE_INFINITY);
+    Arrays.fill(nextScore, Double.NEGATIVE_INFINITY);
+    double[] last = prior;
+    for (int step = 0; step < length; step++) {
+      int color = stencil.colorIndex(evidence[step]);
+      long start = Instrumentation.on ? Instrumentation.begin() : 0L;
+
+      double normalizer = engine.filter(last, forward[step], color);
+      logLikelihood += Math.log(normalizer);
+      engine.toStates(forward[step], filtered[step]);
+      last = forward[step];
+      if (start != 0L) {
+        Instrumentation.step(Metrics.Phase.FILTER, start, step, filtered[step], normalizer);
+        start = Instrumentation.begin();
+      }
+
+      if (step == 0) {
+        engine.viterbiStart(prior, score, color);
+      } else {
+        engine.viterbi(score, nextScore, backchains[step], color);
+        swap = score;
+        score = nextScore;
+        nextScore = swap;
+      }
+      if (start != 0L)
+        Instrumentation.step(Metrics.Phase.VITERBI, start, step, null, Double.NaN);
+    }
+
+    // Best final state (first on ties, as states run in grid order)
+    int best = 0;
+    double bestProbability = 0.0;
+    for (int state = 0; state < stateCount; state++) {
+      double s = score[stencil.stateIndex[state]];
+      if (s > score[stencil.stateIndex[best]])
+        best = state;
+      bestProbability += Math.exp(s); // Scores are shifted so the best is 0
+    }
+    bestProbability = 1.0 / bestProbability;
+
+    int[] bestPath = new int[length];
+    int cell = stencil.stateIndex[best];
+    bestPath[length - 1] = best;
+    for (int step = length - 1; step > 0; step--) {
+      cell += stencil.moveOffset[backchains[step][cell]];
+      bestPath[step - 1] = stencil.stateAt(cell);
+    }
+
+    // Backward sweep: b_k:t = TransitionModel * SensorModel_k * b_k+1:t
+    Arrays.fill(backward, 0.0);
+    for (int state = 0; state < stateCount; state++)
+      backward[stencil.stateIndex[state]] = 1.0;
+    for (int step = length - 1; step >= 0; step--) {
+      long start = Instrumentation.on ? Instrumentation.begin() : 0L;
+      engine.product(forward[step], backward, smoothed[step]);
+      engine.backward(backward, nextBackward, stencil.colorIndex(evidence[step]));
+      swap = backward;
+      backward = nextBackward;
+      nextBackward = swap;
+      if (start != 0L)
+        Instrumentation.step(Metrics.Phase.SMOOTH, start, step, smoothed[step], Double.NaN);
+    }
+
+    return new FusedInference.Result(filtered, smoothed, bestPath, bestProbability, logLikelihood);
+  }
+}
@@ -0,0 +1,268 @@
+package probabalistic_reasoning;
+
+import java.util.Arrays;
+
+/**
+ * The maze's transition model as a 5-point stencil on the grid.
+ *
+ * Messages are laid out row-major over the grid with a one-cell border of
+ * padding, so cell (x, y) lives at (y + 1) * stride + (x + 1) and every cell
+ * has four neighbors in the array. Walls and padding have zero weight, so a
+ * prediction is two flat passes with no neighbor tables and no branches:
+ *
+ *   weigh:  tmp[i] = message[i] * outWeight[i]       (1 / legal moves of i)
+ *   gather: out[i] = likelihood[i] * (tmp[i] + tmp[i - 1] + tmp[i + 1]
+ *                                     + tmp[i - stride] + tmp[i + stride])
+ *
+ * where likelihood is the sensor model for the reading, already zero on
+ * walls. The backward (smoothing) step is the same stencil with the two
+ * weights swapped, and the Viterbi step is the stencil with (max, +) in
+ * place of (+, *) over log weights. Every pass works on a range of rows so
+ * callers can split the grid into bands (see BandEngine). This is the
+ * scalar version; create() returns the Vector API version of the filtering
+ * passes when the jdk.incubator.vector module is available.
+ */
+public class GridStencil {
+  public final Maze maze;
+  public final int width, height;
+  public final int stride;    // width + 2
+  public final int size;      // stride * (height + 2)
+
+  final double[] outWeight;   // Probability of each move out of the cell (0 on walls and padding)
+  final double[][] likelihood; // likelihood[color][i] = P(color | cell i) (0 on walls and padding)
+  final SensorModel sensors;
+  final int[] stateIndex;     // stateIndex[s] = position of state s in a padded message
+
+  // Logs of outWeight and likelihood for Viterbi (-infinity on walls and
+  // padding), built the first time they are needed
+  private double[] logOutWeight;
+  private double[][] logLikelihood;
+
+  // Predecessor offsets in the order ViterbiDecoder scans Maze.actions
+  // (reached by moving NORTH, EAST, SOUTH, WEST, NONE), so ties break the
+  // same way. A Viterbi backpointer is an index into this table.
+  final int[] moveOffset;
+
+  protected GridStencil(MazeModel model) {
+    int cell;
+
+    maze = model.maze;
+    width = maze.width;
+    height = maze.height;
+    stride = width + 2;
+    size = stride * (height + 2);
+
+    sensors = model.sensors;
+    moveOffset = new int[] { -stride, -1, stride, 1, 0 };
+    outWeight = new double[size];
+    likelihood = new double[model.sensors.colorCount()][size];
+    stateIndex = new int[model.stateCount];
+    for (int state = 0; state < model.stateCount; state++) {
+      cell = index(maze.stateX(state), maze.stateY(state));
+      stateIndex[state] = cell;
+      outWeight[cell] = model.transitions.moveProbability(state);
+      for (int c = 0; c < likelihood.length; c++)
+        likelihood[c][cell] = model.sensors.likelihood[c * model.stateCount + state];
+    }
+  }
+
+  /**
+   * The Vector API stencil if jdk.incubator.vector is loaded, else the
+   * scalar one
+   */
+  public static GridStencil create(MazeModel model) {
+    if (ModuleLayer.boot().findModule("jdk.incubator.vector").isPresent()) {
+      try {
+        return (GridStencil) Class.forName("probabalistic_reasoning.VectorStencil")
+            .getDeclaredConstructor(MazeModel.class).newInstance(model);
+      } catch (ReflectiveOperationException | LinkageError e) {
+        // Fall back to the scalar kernel
+      }
+    }
+    return new GridStencil(model);
+  }
+
+  /**
+   * Position of cell (x, y) in a padded message
+   */
+  public int index(int x, int y) {
+    return (y + 1) * stride + (x + 1);
+  }
+
+  public int colorIndex(char color) {
+    return sensors.colorIndex(color);
+  }
+
+  /**
+   * tmp = message * outWeight, over padded rows [rowFrom, rowTo)
+   */
+  public void weigh(double[] message, double[] tmp, int rowFrom, int rowTo) {
+    for (int i = rowFrom * stride; i < rowTo * stride; i++)
+      tmp[i] = message[i] * outWeight[i];
+  }
+
+  /**
+   * out = likelihood(color) * stencil(tmp), over grid rows [rowFrom, rowTo)
+   * (padded rows rowFrom + 1 .. rowTo). tmp must be weighed one row beyond
+   * either end. Returns the sum of what was written.
+   */
+  public double gather(double[] tmp, double[] out, int color, int rowFrom, int rowTo) {
+    double[] lik = likelihood[color];
+    double sum = 0.0;
+    for (int row = rowFrom + 1; row <= rowTo; row++) {
+      int end = row * stride + width + 1;
+      for (int i = row * stride + 1; i < end; i++) {
+        double v = lik[i] * (tmp[i] + tmp[i - 1] + tmp[i + 1] + tmp[i - stride] + tmp[i + stride]);
+        out[i] = v;
+        sum += v;
+      }
+    }
+    return sum;
+  }
+
+  /**
+   * message *= factor, over grid rows [rowFrom, rowTo)
+   */
+  public void scale(double[] message, double factor, int rowFrom, int rowTo) {
+    for (int i = (rowFrom + 1) * stride; i < (rowTo + 1) * stride; i++)
+      message[i] *= factor;
+  }
+
+  /**
+   * tmp = message * likelihood(color), over padded rows [rowFrom, rowTo)
+   * (the first pass of a backward step)
+   */
+  public void weighBack(double[] message, double[] tmp, int color, int rowFrom, int rowTo) {
+    double[] lik = likelihood[color];
+    for (int i = rowFrom * stride; i < rowTo * stride; i++)
+      tmp[i] = message[i] * lik[i];
+  }
+
+  /**
+   * out = outWeight * stencil(tmp), over grid rows [rowFrom, rowTo). Returns
+   * the sum of what was written.
+   */
+  public double gatherBack(double[] tmp, double[] out, int rowFrom, int rowTo) {
+    double sum = 0.0;
+    for (int row = rowFrom + 1; row <= rowTo; row++) {
+      int end = row * stride + width + 1;
+      for (int i = row * stride + 1; i < end; i++) {
+        double v = outWeight[i] * (tmp[i] + tmp[i - 1] + tmp[i + 1] + tmp[i - stride] + tmp[i + stride]);
+        out[i] = v;
+        sum += v;
+      }
+    }
+    return sum;
+  }
+
+  /**
+   * Builds the log tables Viterbi needs, if that hasn't been done yet
+   */
+  public synchronized void buildLogTables() {
+    if (logOutWeight != null)
+      return;
+    double[] logOut = new double[size];
+    double[][] logLik = new double[likelihood.length][size];
+    for (int i = 0; i < size; i++) {
+      logOut[i] = Math.log(outWeight[i]);
+      for (int c = 0; c < likelihood.length; c++)
+        logLik[c][i] = Math.log(likelihood[c][i]);
+    }
+    logLikelihood = logLik;
+    logOutWeight = logOut;
+  }
+
+  /**
+   * tmp = score + log(outWeight), over padded rows [rowFrom, rowTo). Needs
+   * buildLogTables().
+   */
+  public void weighLog(double[] score, double[] tmp, int rowFrom, int rowTo) {
+    for (int i = rowFrom * stride; i < rowTo * stride; i++)
+      tmp[i] = score[i] + logOutWeight[i];
+  }
+
+  /**
+   * out = max over the stencil of tmp, + log(likelihood(color)), over grid
+   * rows [rowFrom, rowTo), with the index into moveOffset of the best
+   * predecessor in back. Returns the largest score written. Needs
+   * buildLogTables().
+   */
+  public double maxGather(double[] tmp, double[] out, byte[] back, int color, int rowFrom, int rowTo) {
+    double[] logLik = logLikelihood[color];
+    double max = Double.NEGATIVE_INFINITY;
+    for (int row = rowFrom + 1; row <= rowTo; row++) {
+      int end = row * stride + width + 1;
+      for (int i = row * stride + 1; i < end; i++) {
+        double best = tmp[i - stride];
+        byte move = 0;
+        if (tmp[i - 1] > best) { best = tmp[i - 1]; move = 1; }
+        if (tmp[i + stride] > best) { best = tmp[i + stride]; move = 2; }
+        if (tmp[i + 1] > best) { best = tmp[i + 1]; move = 3; }
+        if (tmp[i] > best) { best = tmp[i]; move = 4; }
+
+        double v = best + logLik[i];
+        out[i] = v;
+        back[i] = move;
+        if (v > max)
+          max = v;
+      }
+    }
+    return max;
+  }
+
+  /**
+   * out = log(message), over grid rows [rowFrom, rowTo). Returns the
+   * largest value written.
+   */
+  public double log(double[] message, double[] out, int rowFrom, int rowTo) {
+    double max = Double.NEGATIVE_INFINITY;
+    for (int row = rowFrom + 1; row <= rowTo; row++) {
+      int end = row * stride + width + 1;
+      for (int i = row * stride + 1; i < end; i++) {
+        out[i] = Math.log(message[i]);
+        if (out[i] > max)
+          max = out[i];
+      }
+    }
+    return max;
+  }
+
+  /**
+   * score -= delta, over grid rows [rowFrom, rowTo)
+   */
+  public void shift(double[] score, double delta, int rowFrom, int rowTo) {
+    for (int i = (rowFrom + 1) * stride; i < (rowTo + 1) * stride; i++)
+      score[i] -= delta;
+  }
+
+  /**
+   * Copies a message over states into the padded layout
+   */
+  public void toGrid(double[] states, double[] grid) {
+    Arrays.fill(grid, 0.0);
+    for (int state = 0; state < states.length; state++)
+      grid[stateIndex[state]] = states[state];
+  }
+
+  /**
+   * Copies a padded message back into a message over states
+   */
+  public void toStates(double[] grid, double[] states) {
+    toStates(grid, states, 0, states.length);
+  }
+
+  /**
+   * Copies states [from, to) of a padded message into a message over states
+   */
+  public void toStates(double[] grid, double[] states, int from, int to) {
+    for (int state = from; state < to; state++)
+      states[state] = grid[stateIndex[state]];
+  }
+
+  /**
+   * The state at a position in a padded message
+   */
+  public int stateAt(int index) {
+    return maze.XYtoState(index % stride - 1, index / stride - 1);
+  }
+}
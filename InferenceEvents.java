@@ -0,0 +1,66 @@
+package probabalistic_reasoning;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Timespan;
+
+/**
+ * Java Flight Recorder events for the solvers, committed by Instrumentation.
+ * They cost nothing unless a recording enables them, e.g.
+ *
+ *   java -XX:StartFlightRecording=filename=run.jfr,settings=profile ...
+ *
+ * and show up in JDK Mission Control or `jfr print --events
+ * probabalistic_reasoning.Step run.jfr`.
+ */
+public final class InferenceEvents {
+  private InferenceEvents() {}
+
+  @Name("probabalistic_reasoning.ModelBuild")
+  @Label("Model Build")
+  @Category({"Maze HMM"})
+  @Description("Building the transition and sensor models for a maze")
+  @StackTrace(false)
+  public static final class ModelBuild extends Event {
+    @Label("States")
+    public int stateCount;
+
+    @Label("Allocated")
+    @DataAmount
+    public long allocated;
+  }
+
+  @Name("probabalistic_reasoning.Step")
+  @Label("Inference Step")
+  @Category({"Maze HMM"})
+  @Description("One step of filtering, smoothing or Viterbi decoding")
+  @StackTrace(false)
+  public static final class Step extends Event {
+    @Label("Phase")
+    public String phase;
+
+    @Label("Step")
+    public int step;
+
+    @Label("Step Time")
+    @Timespan(Timespan.NANOSECONDS)
+    public long nanos;
+
+    @Label("Allocated")
+    @DataAmount
+    public long allocated;
+
+    @Label("Entropy")
+    @Description("Entropy of the belief after the step, in nats (NaN for Viterbi)")
+    public double entropy;
+
+    @Label("Normalizer")
+    @Description("Sum of the message before it was normalized (NaN for Viterbi)")
+    public double normalizer;
+  }
+}
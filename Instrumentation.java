@@ -0,0 +1,156 @@
+package probabalistic_reasoning;
+
+import java.lang.management.ManagementFactory;
+
+import jdk.jfr.FlightRecorder;
+import jdk.jfr.FlightRecorderListener;
+import jdk.jfr.Recording;
+import jdk.jfr.RecordingState;
+
+/**
+ * The hooks the solvers call per step, feeding Metrics and the JFR events
+ * in InferenceEvents. A solver brackets a step as
+ *
+ *   long start = Instrumentation.on ? Instrumentation.begin() : 0L;
+ *   ...
+ *   if (start != 0L)
+ *     Instrumentation.step(Metrics.Phase.FILTER, start, step, belief, normalizer);
+ *
+ * so while neither Metrics nor a flight recording is on, a step costs one
+ * volatile read. While on, a step also costs two clock reads, two reads of
+ * the thread's allocation counter and an O(n) pass for the entropy.
+ */
+final class Instrumentation {
+  // Metrics are enabled, or a flight recording is running
+  static volatile boolean on;
+
+  // Probabilities too small to add to the entropy
+  private static final double NEGLIGIBLE = 1e-12;
+
+  // Bytes the thread had allocated when its current step began
+  private static final ThreadLocal<long[]> allocatedAtBegin = ThreadLocal.withInitial(() -> new long[1]);
+
+  static {
+    // Follow recordings started or stopped later (by jcmd, say). This
+    // doesn't start the recorder itself.
+    FlightRecorder.addListener(new FlightRecorderListener() {
+      public void recordingStateChanged(Recording recording) {
+        update();
+      }
+    });
+    update();
+  }
+
+  private Instrumentation() {}
+
+  static void update() {
+    on = Metrics.isEnabled() || recording();
+  }
+
+  /**
+   * Starts timing a step; the result is never 0
+   */
+  static long begin() {
+    allocatedAtBegin.get()[0] = allocated();
+    long now = System.nanoTime();
+    return (now == 0L) ? 1L : now;
+  }
+
+  /**
+   * Ends a step begun at start. belief is the distribution after the step
+   * and normalizer the sum its message was divided by (null and NaN for
+   * Viterbi, which has neither; NaN if the solver doesn't expose it).
+   */
+  static void step(Metrics.Phase phase, long start, int step, double[] belief, double normalizer) {
+    long nanos = System.nanoTime() - start;
+    long bytes = allocated() - allocatedAtBegin.get()[0];
+    double entropy = (belief != null) ? entropy(belief) : Double.NaN;
+
+    if (Metrics.isEnabled()) {
+      Metrics.PhaseMetrics metrics = Metrics.of(phase);
+      metrics.nanos.record(nanos);
+      metrics.bytes.record(bytes);
+      if (belief != null)
+        metrics.entropy.record(entropy);
+      if (!Double.isNaN(normalizer)) {
+        metrics.normalizer.record(normalizer);
+        if (normalizer < Metrics.UNDERFLOW_WARNING)
+          metrics.underflowWarnings.increment();
+      }
+    }
+
+    InferenceEvents.Step event = new InferenceEvents.Step();
+    if (event.isEnabled()) {
+      event.phase = phase.name();
+      event.step = step;
+      event.nanos = nanos;
+      event.allocated = bytes;
+      event.entropy = entropy;
+      event.normalizer = normalizer;
+      event.commit();
+    }
+  }
+
+  /**
+   * Ends a model build begun at start
+   */
+  static void modelBuilt(long start, int stateCount) {
+    long nanos = System.nanoTime() - start;
+    long bytes = allocated() - allocatedAtBegin.get()[0];
+
+    if (Metrics.isEnabled()) {
+      Metrics.histogram("model.build.nanos").record(nanos);
+      Metrics.histogram("model.build.bytes").record(bytes);
+      Metrics.gauge("model.states").record(stateCount);
+    }
+
+    InferenceEvents.ModelBuild event = new InferenceEvents.ModelBuild();
+    if (event.isEnabled()) {
+      event.stateCount = stateCount;
+      event.allocated = bytes;
+      event.commit();
+    }
+  }
+
+  // -sum p ln p, in nats. Probabilities below NEGLIGIBLE are skipped, which
+  // saves the log on most states once the belief has settled and is off by
+  // at most n * 3e-11 nats.
+  static double entropy(double[] belief) {
+    double h = 0.0;
+    for (double p : belief)
+      if (p > NEGLIGIBLE)
+        h -= p * Math.log(p);
+    return h;
+  }
+
+  private static boolean recording() {
+    if (!FlightRecorder.isAvailable() || !FlightRecorder.isInitialized())
+      return false;
+    for (Recording recording : FlightRecorder.getFlightRecorder().getRecordings())
+      if (recording.getState() == RecordingState.RUNNING)
+        return true;
+    return false;
+  }
+
+  // Bytes allocated by this thread so far, or 0 if the JVM can't tell
+  private static long allocated() {
+    com.sun.management.ThreadMXBean threads = AllocationCounter.threads;
+    return (threads != null) ? threads.getCurrentThreadAllocatedBytes() : 0L;
+  }
+
+  // Loaded on the first step measured, so the management classes aren't
+  // loaded at all while nothing is
+  private static final class AllocationCounter {
+    static final com.sun.management.ThreadMXBean threads = find();
+  }
+
+  private static com.sun.management.ThreadMXBean find() {
+    if (!(ManagementFactory.getThreadMXBean() instanceof com.sun.management.ThreadMXBean))
+      return null;
+    com.sun.management.ThreadMXBean bean = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+    if (!bean.isThreadAllocatedMemorySupported())
+      return null;
+    bean.setThreadAllocatedMemoryEnabled(true);
+    return bean;
+  }
+}
@@ -0,0 +1,112 @@
+package probabalistic_reasoning;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counts of latencies in nanoseconds, for percentiles, that any number of
+ * threads can record into without locking.
+ *
+ * Buckets are log-linear: exact below 16 ns, then 16 buckets per power of
+ * two, so a percentile is within 1/16 (about 6%) of the true value. It is
+ * reported as the top of its bucket, so it never understates. Recording is
+ * one atomic increment and nothing is allocated.
+ */
+public class LatencyHistogram {
+  private static final int SUB_BITS = 4;
+  private static final int SUB_BUCKETS = 1 << SUB_BITS;
+  private static final int BUCKETS = (64 - SUB_BITS) * SUB_BUCKETS;
+
+  private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+  private final LongAdder total = new LongAdder();
+  private final LongAdder sum = new LongAdder();
+  private final AtomicLong max = new AtomicLong();
+
+  public void record(long nanos) {
+    if (nanos < 0)
+      nanos = 0;
+    counts.incrementAndGet(bucket(nanos));
+    total.increment();
+    sum.add(nanos);
+    if (nanos > max.get())
+      max.accumulateAndGet(nanos, Math::max);
+  }
+
+  public long count() {
+    return total.sum();
+  }
+
+  public double mean() {
+    long n = total.sum();
+    return (n == 0) ? 0.0 : (double) sum.sum() / n;
+  }
+
+  public long max() {
+    return max.get();
+  }
+
+  /**
+   * The latency that the given share (0 to 1) of recordings were at or
+   * below, or 0 if nothing was recorded. Recordings made while this runs
+   * may or may not be counted.
+   */
+  public long percentile(double q) {
+    if (q < 0.0 || q > 1.0)
+      throw new IllegalArgumentException("Percentile must be in [0, 1], got " + q);
+
+    long[] snapshot = new long[BUCKETS];
+    long n = 0;
+    for (int b = 0; b < BUCKETS; b++) {
+      snapshot[b] = counts.get(b);
+      n += snapshot[b];
+    }
+    if (n == 0)
+      return 0;
+
+    long rank = Math.max(1, (long) Math.ceil(q * n));
+    long seen = 0;
+    for (int b = 0; b < BUCKETS; b++) {
+      seen += snapshot[b];
+      if (seen >= rank)
+        return Math.min(highest(b), max.get());
+    }
+    return max.get();
+  }
+
+  /**
+   * Forgets everything recorded so far
+   */
+  public void reset() {
+    for (int b = 0; b < BUCKETS; b++)
+      counts.set(b, 0);
+    total.reset();
+    sum.reset();
+    max.set(0);
+  }
+
+  public String toString() {
+    return String.format("n=%d p50=%.1fus p99=%.1fus max=%.1fus", count(), percentile(0.5) / 1e3,
+        percentile(0.99) / 1e3, max() / 1e3);
+  }
+
+  // Values below SUB_BUCKETS get a bucket each; above, the top SUB_BITS + 1
+  // bits pick the bucket
+  static int bucket(long nanos) {
+    if (nanos < SUB_BUCKETS)
+      return (int) nanos;
+    int exp = 63 - Long.numberOfLeadingZeros(nanos);
+    return (exp - SUB_BITS + 1) * SUB_BUCKETS + (int) ((nanos >>> (exp - SUB_BITS)) & (SUB_BUCKETS - 1));
+  }
+
+  // Largest value that falls in a bucket
+  static long highest(int bucket) {
+    if (bucket < SUB_BUCKETS)
+      return bucket;
+    int exp = bucket / SUB_BUCKETS + SUB_BITS - 1;
+    if (exp >= 62)
+      return Long.MAX_VALUE; // The top of the top buckets doesn't fit a long
+    long lowest = (long) (SUB_BUCKETS + bucket % SUB_BUCKETS) << (exp - SUB_BITS);
+    return lowest + (1L << (exp - SUB_BITS)) - 1;
+  }
+}
@@ -0,0 +1,251 @@
+package probabalistic_reasoning;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Tracks many robots at once on one maze, for clients on this machine.
+ *
+ * Clients connect over TCP on the loopback address and send one command per
+ * line, each answered with one line:
+ *
+ *   OPEN            -> id of a new session
+ *   OBS id color    -> step x y probability (the most likely cell after the
+ *                      reading, and its filtered probability)
+ *   RESET id        -> OK
+ *   CLOSE id        -> OK
+ *   STATS           -> session count and observation latency percentiles
+ *   QUIT            -> closes the connection
+ *
+ * Anything else, or a session that doesn't exist, is answered with ERR and a
+ * reason. A connection may use any number of sessions, and a session any
+ * number of connections.
+ *
+ * Every session shares the one read-only MazeModel and holds only its own
+ * belief (see LocalizationSession), locked per session, so sessions never
+ * wait on each other. Each connection gets its own thread: a virtual thread
+ * when the JVM has them (Java 21 and up), found by reflection so this still
+ * builds and runs on older JVMs, which fall back to a cached pool of
+ * platform threads.
+ *
+ * The latency of each OBS, from reading the line to writing the reply, goes
+ * into a LatencyHistogram.
+ */
+public class LocalizationServer implements Closeable {
+  public final MazeModel model;
+  public final LatencyHistogram latency = new LatencyHistogram();
+
+  private final ServerSocket server;
+  private final ExecutorService executor;
+  private final ConcurrentHashMap<Long, LocalizationSession> sessions = new ConcurrentHashMap<>();
+  private final Set<Socket> connections = ConcurrentHashMap.newKeySet();
+  private final AtomicLong nextId = new AtomicLong(1);
+  private Thread acceptor;
+
+  /**
+   * Listens on the given loopback port (0 for any free one); start() begins
+   * taking connections
+   */
+  public LocalizationServer(MazeModel model, int port) throws IOException {
+    this.model = model;
+    this.server = new ServerSocket(port, 1 << 12, InetAddress.getLoopbackAddress());
+    this.executor = newExecutor();
+  }
+
+  /**
+   * The port the server is listening on
+   */
+  public int port() {
+    return server.getLocalPort();
+  }
+
+  public int sessionCount() {
+    return sessions.size();
+  }
+
+  /**
+   * Whether connections are served on virtual threads
+   */
+  public static boolean hasVirtualThreads() {
+    try {
+      Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+      return true;
+    } catch (NoSuchMethodException e) {
+      return false;
+    }
+  }
+
+  public synchronized void start() {
+    if (acceptor != null)
+      throw new IllegalStateException("Server already started");
+
+    acceptor = new Thread(() -> {
+      while (!server.isClosed()) {
+        try {
+          Socket socket = server.accept();
+          connections.add(socket);
+          executor.execute(() -> serve(socket));
+        } catch (IOException e) {
+          if (!server.isClosed())
+            System.err.println("Accept failed: " + e.getMessage());
+        }
+      }
+    }, "localization-acceptor");
+    acceptor.setDaemon(true);
+    acceptor.start();
+  }
+
+  /**
+   * Stops listening and drops every connection and session
+   */
+  public void close() throws IOException {
+    server.close();
+    for (Socket socket : connections)
+      socket.close();
+    executor.shutdownNow();
+    sessions.clear();
+  }
+
+  // Answers one connection's commands until it closes or sends QUIT
+  private void serve(Socket socket) {
+    try (Socket s = socket;
+         BufferedReader in = new BufferedReader(new InputStreamReader(s.getInputStream(), StandardCharsets.US_ASCII));
+         Writer out = new BufferedWriter(new OutputStreamWriter(s.getOutputStream(), StandardCharsets.US_ASCII))) {
+      s.setTcpNoDelay(true);
+      String line;
+      while ((line = in.readLine()) != null) {
+        long start = System.nanoTime();
+        String[] words = line.trim().split("\\s+");
+        if (words[0].equalsIgnoreCase("QUIT"))
+          break;
+
+        boolean observation = words[0].equalsIgnoreCase("OBS");
+        out.write(handle(words));
+        out.write('\n');
+        out.flush();
+        if (observation)
+          latency.record(System.nanoTime() - start);
+      }
+    } catch (SocketException e) {
+      // Closed by the client or by close()
+    } catch (IOException e) {
+      System.err.println("Connection failed: " + e.getMessage());
+    } finally {
+      connections.remove(socket);
+    }
+  }
+
+  // The reply to one command
+  private String handle(String[] words) {
+    try {
+      switch (words[0].toUpperCase()) {
+        case "OPEN": {
+          long id = nextId.getAndIncrement();
+          sessions.put(id, model.newSession(id));
+          return Long.toString(id);
+        }
+        case "OBS": {
+          if (words.length != 3 || words[2].length() != 1)
+            return "ERR usage: OBS id color";
+          LocalizationSession session = session(words[1]);
+          if (session == null)
+            return "ERR no session " + words[1];
+          char color = words[2].charAt(0);
+          int state, step;
+          double p;
+          synchronized (session) { // One reply from one consistent belief
+            state = session.observe(color);
+            step = session.steps();
+            p = session.probability(state);
+          }
+          return step + " " + model.maze.stateX(state) + " " + model.maze.stateY(state) + " " + p;
+        }
+        case "RESET": {
+          LocalizationSession session = (words.length == 2) ? session(words[1]) : null;
+          if (session == null)
+            return "ERR no session";
+          session.reset();
+          return "OK";
+        }
+        case "CLOSE": {
+          LocalizationSession session = (words.length == 2) ? session(words[1]) : null;
+          if (session == null)
+            return "ERR no session";
+          sessions.remove(session.id);
+          return "OK";
+        }
+        case "STATS":
+          return "sessions=" + sessions.size() + " " + latency;
+        default:
+          return "ERR unknown command " + words[0];
+      }
+    } catch (IllegalArgumentException | IllegalStateException e) { // Bad id, unknown color or impossible reading
+      return "ERR " + e.getMessage();
+    }
+  }
+
+  private LocalizationSession session(String id) {
+    return sessions.get(Long.parseLong(id));
+  }
+
+  // A virtual thread per task if this JVM has them, otherwise a cached pool
+  private static ExecutorService newExecutor() {
+    try {
+      return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+    } catch (ReflectiveOperationException e) {
+      return Executors.newCachedThreadPool(task -> {
+        Thread thread = new Thread(task, "localization-session");
+        thread.setDaemon(true);
+        return thread;
+      });
+    }
+  }
+
+  /**
+   * Usage: LocalizationServer [port] [mazeFile] [cacheDir|-]
+   * (defaults: 7070, the driver's maze, no cache). -Dmaze.metrics=file
+   * exports the filter's metrics as in SchapireDriver.
+   */
+  public static void main(String[] args) throws IOException, InterruptedException {
+    int port = (args.length > 0) ? Integer.parseInt(args[0]) : 7070;
+    String mazeFile = (args.length > 1) ? args[1] : SchapireDriver.mazeFile;
+
+    MazeModel model = null;
+    if (args.length > 2 && !args[2].equals("-"))
+      model = new ModelCache(Paths.get(args[2])).load(mazeFile);
+    if (model == null)
+      model = new MazeModel(Maze.readFromFile(mazeFile));
+
+    LocalizationServer server = new LocalizationServer(model, port);
+    MetricsExporter metrics = MetricsExporter.fromSystemProperty();
+    Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+      System.out.println("Observations: " + server.latency);
+      try {
+        if (metrics != null)
+          metrics.close();
+      } catch (IOException e) {
+        System.err.println("Can't export metrics: " + e.getMessage());
+      }
+    }));
+    server.start();
+    System.out.printf("Tracking on localhost:%d, %d states, %s threads%n", server.port(), model.stateCount,
+        hasVirtualThreads() ? "virtual" : "pooled");
+    Thread.currentThread().join();
+  }
+}
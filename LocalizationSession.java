@@ -0,0 +1,63 @@
+package probabalistic_reasoning;
+
+/**
+ * One robot being tracked on a shared model: its filtered belief and how
+ * many readings it has taken. The model (MazeModel) is read-only and can be
+ * shared by any number of sessions; everything that changes per reading
+ * lives here, two arrays of stateCount doubles.
+ *
+ * Every method locks the session, so readings pushed from different threads
+ * are taken one at a time, in the order they get the lock. To read several
+ * things from one belief (say the most likely state and its probability),
+ * hold the session's lock across the calls. Sessions never share a lock.
+ */
+public class LocalizationSession {
+  public final long id;
+  public final MazeModel model;
+
+  private final OnlineFilter filter;
+
+  public LocalizationSession(long id, MazeModel model) {
+    this.id = id;
+    this.model = model;
+    this.filter = model.newFilter();
+  }
+
+  /**
+   * Takes one move and one reading, and returns the most likely state
+   * afterwards
+   */
+  public synchronized int observe(char color) {
+    filter.observe(color);
+    return filter.mostLikelyState();
+  }
+
+  /**
+   * Forgets all readings and starts again from the model's prior
+   */
+  public synchronized void reset() {
+    filter.reset(model.prior);
+  }
+
+  public synchronized int steps() {
+    return filter.steps();
+  }
+
+  public synchronized int mostLikelyState() {
+    return filter.mostLikelyState();
+  }
+
+  /**
+   * Filtered probability of the given state
+   */
+  public synchronized double probability(int state) {
+    return filter.belief()[state];
+  }
+
+  /**
+   * A copy of the filtered distribution
+   */
+  public synchronized double[] belief() {
+    return filter.belief().clone();
+  }
+}
@@ -1,19 +1,17 @@
 package probabalistic_reasoning;
 
 import java.io.IOException;
-import java.nio.charset.Charset;
-import java.nio.charset.StandardCharsets;
-import java.nio.file.Files;
-import java.nio.file.Path;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
 import java.nio.file.Paths;
-import java.util.List;
+import java.nio.file.StandardOpenOption;
 import java.util.Random;
+import java.util.random.RandomGenerator;
 
 
 public class Maze {
-	final static Charset ENCODING = StandardCharsets.UTF_8;
-
-        public static final int DIMENSION = 4;
+	// Largest piece of a .maz file mapped at once
+	private static final long MAP_CHUNK = 1L << 30;
 
 	// A few useful constants to describe actions
 	public static int[] NORTH = {0, 1};
@@ -24,58 +22,161 @@ public class Maze {
 	public int width;
 	public int height;
 
+        // States are numbered over the floor cells only, bottom row first
+        public int stateCount;
+        private int[] stateCell;  // stateCell[s] = y * width + x of state s
+        private int[] rank;       // Number of floor cells before each word of walls
+        // In an editable maze (see editableCopy()) every cell has a state, its
+        // cell index, whether it is a wall or not
+        private boolean editable;
+
         public static int actions[][] = { NORTH, EAST, SOUTH, WEST, NONE };
         public static char colorSet[] = { 'r', 'g', 'b', 'y' };
 
-	private char[][] grid;
-        private char[][] colors;
+	// One bit per cell (y * width + x), set for walls. Bits past the last
+	// cell are set too, so they never count as floor.
+	private long[] walls;
+	// colorBits bits per cell (y * width + x), holding an index into colorSet.
+	// Wall cells have a slot too, but what it holds means nothing.
+	private long[] colors;
+	private int colorBits;
 
         public Random rand = new Random(0);
 
+	/**
+	 * Reads a .maz file: one row per line, '.' for floor and anything else for
+	 * a wall, top row first. The file is memory-mapped and parsed straight
+	 * into the wall bitset, so no Strings are built and nothing is printed.
+	 */
 	public static Maze readFromFile(String filename) {
 		Maze m = new Maze();
 
-		try {
-			List<String> lines = readFile(filename);
-			m.height = lines.size();
-
-			int y = 0;
-			m.grid = new char[m.height][];
-			for (String line : lines) {
-				m.width = line.length();
-				m.grid[m.height - y - 1] = new char[m.width];
-				for (int x = 0; x < line.length(); x++) {
-					// (0, 0) should be bottom left, so flip y as 
-					//  we read from file into array:
-					m.grid[m.height - y - 1][x] = line.charAt(x);
+		try (FileChannel channel = FileChannel.open(Paths.get(filename), StandardOpenOption.READ)) {
+			long size = channel.size();
+
+			// First pass: the width of the first row and the number of rows
+			long rows = 0;
+			int width = -1;
+			int x = 0;
+			byte last = '\n';
+			for (long pos = 0; pos < size; pos += MAP_CHUNK) {
+				MappedByteBuffer buf = channel.map(FileChannel.MapMode.READ_ONLY, pos, Math.min(MAP_CHUNK, size - pos));
+				while (buf.hasRemaining()) {
+					last = buf.get();
+					if (last == '\n') {
+						if (width < 0)
+							width = x;
+						rows++;
+					} else if (last != '\r' && width < 0) {
+						x++;
+					}
 				}
-				y++;
+			}
+			if (last != '\n') { // No newline after the last row
+				if (width < 0)
+					width = x;
+				rows++;
+			}
 
-				// System.out.println(line.length());
-	                }
+			if (width < 0)
+				width = 0;
+			if (rows * width > Integer.MAX_VALUE)
+				throw new IllegalArgumentException(filename + ": " + width + " x " + rows + " maze is too large");
+			m.width = width;
+			m.height = (int) rows;
+			m.walls = new long[words(m.width * m.height, 64)];
+			m.markPastEnd();
+
+			// Second pass: fill in the walls. (0, 0) should be bottom left,
+			// so flip y as we read from file into the bitset
+			int y = m.height - 1;
+			x = 0;
+			for (long pos = 0; pos < size; pos += MAP_CHUNK) {
+				MappedByteBuffer buf = channel.map(FileChannel.MapMode.READ_ONLY, pos, Math.min(MAP_CHUNK, size - pos));
+				while (buf.hasRemaining()) {
+					byte b = buf.get();
+					if (b == '\n') {
+						m.checkRow(filename, y, x);
+						y--;
+						x = 0;
+					} else if (b != '\r') {
+						if (x >= m.width)
+							m.checkRow(filename, y, x + 1);
+						if (b != '.')
+							m.setWallBit(y * m.width + x);
+						x++;
+					}
+				}
+			}
+			if (x > 0)
+				m.checkRow(filename, y, x);
 
-                        m.colors = new char[m.height][m.width];
-                        m.colorIn();
-                        System.out.println(m);
+			m.indexStates();
+			m.colorIn();
 			return m;
 		} catch (IOException E) {
 			return null;
 		}
+	}
 
-              
+	private void checkRow(String filename, int y, int cells) {
+		if (cells != width)
+			throw new IllegalArgumentException(filename + ": row " + (height - y) + " has "
+					+ cells + " cells, expected " + width);
+	}
+
+	private void setWallBit(int cell) {
+		walls[cell >>> 6] |= 1L << (cell & 63);
 	}
 
-	private static List<String> readFile(String fileName) throws IOException {
-		Path path = Paths.get(fileName);
-		return Files.readAllLines(path, ENCODING);
+	private void markPastEnd() {
+		int cells = width * height;
+		if ((cells & 63) != 0)
+			walls[walls.length - 1] |= -1L << (cells & 63);
+	}
+
+	// Numbers the floor cells, so walls take no space in the models. The rank
+	// table turns (x, y) into a state with a popcount instead of a lookup
+	// table the size of the grid.
+	private void indexStates() {
+		stateCount = 0;
+		rank = new int[walls.length];
+		for (int w = 0; w < walls.length; w++) {
+			rank[w] = stateCount;
+			stateCount += Long.bitCount(~walls[w]);
+		}
+
+		stateCell = new int[stateCount];
+		int state = 0;
+		for (int w = 0; w < walls.length; w++) {
+			long floor = ~walls[w];
+			while (floor != 0) {
+				stateCell[state++] = (w << 6) + Long.numberOfTrailingZeros(floor);
+				floor &= floor - 1;
+			}
+		}
+	}
+
+	public boolean isWall(int x, int y) {
+		int cell = y * width + x;
+		return (walls[cell >>> 6] & (1L << (cell & 63))) != 0;
 	}
 
 	public char getChar(int x, int y) {
-		return grid[y][x];
+		return isWall(x, y) ? '#' : '.';
 	}
 
         public char getColor(int x, int y) {
-                return colors[y][x];
+                if (isWall(x, y))
+                  return '#';
+                return colorSet[colorIndex(y * width + x)];
+        }
+
+        // Index into colorSet of the color at the given (floor) cell
+        private int colorIndex(int cell) {
+                int perWord = 64 / colorBits;
+                int shift = (cell % perWord) * colorBits;
+                return (int) ((colors[cell / perWord] >>> shift) & ((1L << colorBits) - 1));
         }
 
 	// is the location x, y on the map, and also a legal floor tile (not a wall)?
@@ -83,18 +184,26 @@ public class Maze {
 		// on the map
 		if(x >= 0 && x < width && y >= 0 && y < height) {
 			// and it's a floor tile, not a wall tile:
-			return getChar(x, y) == '.';
+			return !isWall(x, y);
 		}
 		return false;
 	}
 
         public int[] getPath(int len) {
+          return getPath(len, rand);
+        }
+
+        // Same as getPath(len), drawing from the given generator instead of rand
+        public int[] getPath(int len, RandomGenerator rand) {
           int[] path = new int[len];
           int xCurr, yCurr;
           int xNext, yNext;
           int randVal;
           int[] rMove;
 
+          if (stateCount == 0)
+            throw new IllegalStateException("Maze has no floor cells to walk on");
+
           // Get the starting position
           do {
             xCurr = rand.nextInt(width);
@@ -122,23 +231,26 @@ public class Maze {
         }
 
         public char[] getColorPath(int[] path) {
-          int[] XY;
+          return getColorPath(path, rand);
+        }
+
+        // Same as getColorPath(path), drawing from the given generator instead of rand
+        public char[] getColorPath(int[] path, RandomGenerator rand) {
           int rVal;
           char[] cPath = new char[path.length];
           char correct;
           char perceived;
 
           for (int i = 0; i < path.length; i++) {
-            XY = StatetoXY(path[i]);
-            correct = colors[XY[1]][XY[0]];
+            correct = stateColor(path[i]);
 
             rVal = rand.nextInt(100);
 
             if (rVal < 88) {  // Give the correct value 88% of the time
               perceived = correct;
             } else {
-              do {            // Randomly choose one of the other three options
-                perceived = colorSet[rand.nextInt(4)];
+              do {            // Randomly choose one of the other options
+                perceived = colorSet[rand.nextInt(colorSet.length)];
               } while (perceived == correct);
             }
 
@@ -148,72 +260,244 @@ public class Maze {
         }
 	
         public char[] getCorrectColorPath(int[] path) {
-          int[] XY;
-          int rVal;
           char[] cPath = new char[path.length];
 
-          for (int i = 0; i < path.length; i++) {
-            XY = StatetoXY(path[i]);
-            cPath[i] = colors[XY[1]][XY[0]];
-          }
+          for (int i = 0; i < path.length; i++)
+            cPath[i] = stateColor(path[i]);
           return cPath;
         }
 
-        public static int[] StatetoXY(int state) {
+        public int[] StatetoXY(int state) {
           int[] pair = new int[2];
-          pair[0] = state % DIMENSION;
-          pair[1] = state / DIMENSION;
+          pair[0] = stateX(state);
+          pair[1] = stateY(state);
 
           return pair;
         }
 
-        public static int XYtoState(int x, int y) {
-          return (y * DIMENSION + x);
+        // Coordinates of a state without allocating a pair, for per-step loops
+        public int stateX(int state) {
+          return stateCell[state] % width;
+        }
+
+        public int stateY(int state) {
+          return stateCell[state] / width;
+        }
+
+        // Color of the floor cell a state is on
+        public char stateColor(int state) {
+          return colorSet[stateColorIndex(state)];
+        }
+
+        // Index into colorSet of the color of a state's cell
+        int stateColorIndex(int state) {
+          return colorIndex(stateCell[state]);
+        }
+
+        // The state at (x, y), or -1 if that cell is a wall
+        public int XYtoState(int x, int y) {
+          int cell = y * width + x;
+          long word = walls[cell >>> 6];
+          long below = (1L << (cell & 63)) - 1;
+
+          if ((word & (1L << (cell & 63))) != 0)
+            return -1;
+          if (editable)
+            return cell;
+          return rank[cell >>> 6] + Long.bitCount(~word & below);
+        }
+
+        /**
+         * A copy whose cells can be changed (see MazeEditor). Every cell gets
+         * a state, numbered by cell, so walls can turn to floor and back
+         * without renumbering anything; the states of wall cells are just
+         * unreachable. Paths are drawn from the same rand.
+         */
+        public Maze editableCopy() {
+          Maze m = new Maze();
+          m.width = width;
+          m.height = height;
+          m.walls = walls.clone();
+          m.colors = colors.clone();
+          m.colorBits = colorBits;
+          m.rand = rand;
+          m.editable = true;
+          m.stateCount = width * height;
+          m.stateCell = new int[m.stateCount];
+          for (int cell = 0; cell < m.stateCount; cell++)
+            m.stateCell[cell] = cell;
+          return m;
+        }
+
+        public boolean isEditable() {
+          return editable;
+        }
+
+        // Makes a cell a wall or floor (editable mazes only). A cell keeps its
+        // color while it is a wall.
+        void putWall(int x, int y, boolean wall) {
+          checkEditable();
+          int cell = y * width + x;
+          if (wall)
+            walls[cell >>> 6] |= 1L << (cell & 63);
+          else
+            walls[cell >>> 6] &= ~(1L << (cell & 63));
         }
+
+        // Sets a cell's index into colorSet (editable mazes only)
+        void putColor(int x, int y, int color) {
+          checkEditable();
+          int cell = y * width + x;
+          int perWord = 64 / colorBits;
+          int shift = (cell % perWord) * colorBits;
+          long mask = ((1L << colorBits) - 1) << shift;
+          colors[cell / perWord] = (colors[cell / perWord] & ~mask) | (((long) color << shift) & mask);
+        }
+
+        private void checkEditable() {
+          if (!editable)
+            throw new IllegalStateException("Maze can't be changed; edit an editableCopy()");
+        }
+
+	// Bits needed to pack an index into a set of the given number of colors
+	static int colorBitsFor(int colors) {
+		return Math.max(1, 32 - Integer.numberOfLeadingZeros(colors - 1));
+	}
+
+	// Longs needed to pack entries values perWord to a long; counted in long
+	// so a maze of nearly Integer.MAX_VALUE cells doesn't wrap
+	static int words(int entries, int perWord) {
+		return (int) (((long) entries + perWord - 1) / perWord);
+	}
+
+	/**
+	 * A maze from a wall bitset and packed colors that were generated
+	 * elsewhere (see MazeGenerator), drawing paths from the given generator
+	 */
+	static Maze fromBits(int width, int height, long[] walls, long[] colors, int colorBits, Random rand) {
+		Maze m = new Maze();
+		m.width = width;
+		m.height = height;
+		m.walls = walls;
+		m.markPastEnd();
+		m.indexStates();
+		m.colors = colors;
+		m.colorBits = colorBits;
+		m.rand = rand;
+		return m;
+	}
+
+	/**
+	 * Rebuilds a maze from the packed tables of another one (see ModelCache).
+	 * rand is left where colorIn() would have left it, so paths drawn from the
+	 * rebuilt maze are the same as from one read from file.
+	 */
+	static Maze fromPacked(int width, int height, long[] walls, int[] rank, int[] stateCell,
+			long[] colors, int colorBits) {
+		Maze m = new Maze();
+		m.width = width;
+		m.height = height;
+		m.walls = walls;
+		m.rank = rank;
+		m.stateCell = stateCell;
+		m.stateCount = stateCell.length;
+		m.colors = colors;
+		m.colorBits = colorBits;
+		m.rand = afterColoring(m.stateCount);
+		return m;
+	}
+
+	// The packed tables, for writing a compiled model. Not to be modified.
+	long[] packedWalls() {
+		return walls;
+	}
+
+	int[] packedRank() {
+		return rank;
+	}
+
+	int[] packedStateCells() {
+		return stateCell;
+	}
+
+	long[] packedColors() {
+		return colors;
+	}
+
+	int colorBits() {
+		return colorBits;
+	}
+
+	// A new Random(0) after colorIn() has drawn one color for each of draws
+	// floor cells
+	private static Random afterColoring(long draws) {
+		final long MULTIPLIER = 0x5DEECE66DL, ADDEND = 0xBL, MASK = (1L << 48) - 1;
+		Random r = new Random(0);
+
+		if (Integer.bitCount(colorSet.length) != 1) {
+			// nextInt(bound) may reject and redraw, so replay the draws
+			for (long i = 0; i < draws; i++)
+				r.nextInt(colorSet.length);
+			return r;
+		}
+
+		// With a power-of-two bound every draw is exactly one step of the
+		// generator, seed = seed * MULTIPLIER + ADDEND (mod 2^48), so jump ahead
+		// by squaring that step instead of taking it draws times
+		long mul = 1, add = 0;
+		long stepMul = MULTIPLIER, stepAdd = ADDEND;
+		for (long k = draws; k != 0; k >>>= 1) {
+			if ((k & 1) != 0) {
+				mul = (mul * stepMul) & MASK;
+				add = (add * stepMul + stepAdd) & MASK;
+			}
+			stepAdd = (stepAdd * (stepMul + 1)) & MASK;
+			stepMul = (stepMul * stepMul) & MASK;
+		}
+		long seed = (MULTIPLIER * mul + add) & MASK; // Random(0) starts from 0 ^ MULTIPLIER
+		return new Random(seed ^ MULTIPLIER);        // The constructor scrambles its seed the same way
+	}
+
+	// Randomly colors every floor cell, packed colorBits bits per cell
 	public void colorIn() {
           int rVal = -1;
-          for (int y = 0; y < width; y++) {
-            for (int x = 0; x < height; x++) {
-              if (getChar(x, y) == '.') {
-                rVal = rand.nextInt(4);
-
-                switch(rVal) {
-                  case 0:   colors[y][x] = 'r';
-                            break;
-                  case 1:   colors[y][x] = 'g';
-                            break;
-                  case 2:   colors[y][x] = 'b';
-                            break;
-                  case 3:   colors[y][x] = 'y';
-                            break;
-                  default:  colors[y][x] = 'x';
-                }
-              } else {
-                colors[y][x] = '#';
+          int cell, perWord;
+
+          colorBits = colorBitsFor(colorSet.length);
+          perWord = 64 / colorBits;
+          colors = new long[words(width * height, perWord)];
+
+          for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+              if (!isWall(x, y)) {
+                rVal = rand.nextInt(colorSet.length);
+                cell = y * width + x;
+                colors[cell / perWord] |= ((long) rVal) << ((cell % perWord) * colorBits);
               }
             }
           }
         }
 
 	public String toString() {
-		String s = "Maze:\n";
+		StringBuilder s = new StringBuilder((width + 2) * height * 2 + 16);
+		s.append("Maze:\n");
 		for (int y = 0; y < height; y++) {
-                        s += "\t";
+                        s.append('\t');
 			for (int x = 0; x < width; x++) {
-				s += grid[y][x];
+				s.append(getChar(x, y));
 			}
-			s += "\n";
+			s.append('\n');
 		}
-                s += "\nColors:\n";
+                s.append("\nColors:\n");
               
-                s += "\t";
+                s.append('\t');
                 for (int y = 0; y < height; y++) {
                   for (int x = 0; x < width; x++) {
-                    s += colors[y][x];
+                    s.append(getColor(x, y));
                   }
-                  s += "\n\t";
+                  s.append("\n\t");
                 }
-		return s;
+		return s.toString();
 	}
 
 	public static void main(String args[]) {
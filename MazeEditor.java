@@ -0,0 +1,143 @@
+package probabalistic_reasoning;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Changes a maze while it is in use: doors open, obstacles appear, cells are
+ * repainted.
+ *
+ * The editor works on its own model over an editable copy of the maze
+ * (Maze.editableCopy()), where every cell has a fixed state whether it is a
+ * wall or not. Turning a cell into a wall or floor then never renumbers a
+ * state. It only relinks the transition rows of the cell and its four
+ * neighbors, and resets the cell's likelihoods, so every edit is O(1). The
+ * states of wall cells are unreachable and read nothing. The prior is
+ * uniform over the floor as it was when the editor was made, with nothing
+ * on the walls. Edits leave it alone; filters that (re)start from it skip
+ * the cells that have become walls since and renormalize the rest.
+ *
+ * Attached filters are carried across edits: when a cell becomes a wall,
+ * its state is ruled out of each filter's belief, also in O(1) (the belief
+ * is renormalized by the filter's next step). Other solvers copy or
+ * scan the tables as they go and should be built again after an edit. The
+ * model is changed in place, so it must not be in use on another thread
+ * during an edit.
+ */
+public class MazeEditor {
+  public final MazeModel model;
+  public final Maze maze;
+
+  private final List<OnlineFilter> filters = new ArrayList<OnlineFilter>();
+
+  /**
+   * An editor over a copy of the given model's maze, with the same sensor
+   * colors and accuracy
+   */
+  public MazeEditor(MazeModel original) {
+    maze = original.maze.editableCopy();
+    model = new MazeModel(maze, new SensorModel(maze, original.sensors.colors, original.sensors.accuracy));
+
+    // The editable copy gives every cell a state, so take the walls' share
+    // of the uniform prior back
+    double share = 1.0 / original.stateCount;
+    for (int state = 0; state < model.stateCount; state++)
+      model.prior[state] = (model.transitions.moveProb[state] == 0.0) ? 0.0 : share;
+  }
+
+  /**
+   * A filter on the edited model that follows every edit
+   */
+  public OnlineFilter newFilter() {
+    OnlineFilter filter = model.newFilter();
+    filters.add(filter);
+    return filter;
+  }
+
+  /**
+   * Has the editor carry a filter on its model across edits
+   */
+  public void attach(OnlineFilter filter) {
+    if (filter.transitions != model.transitions)
+      throw new IllegalArgumentException("Filter is not on this editor's model");
+    if (!filters.contains(filter))
+      filters.add(filter);
+  }
+
+  public void detach(OnlineFilter filter) {
+    filters.remove(filter);
+  }
+
+  /**
+   * Turns a floor cell into a wall. The robot can no longer be there, so
+   * attached filters drop that state (in O(1); their beliefs are normalized
+   * again on the next read or step). Does nothing if it is a wall already.
+   */
+  public void setWall(int x, int y) {
+    checkBounds(x, y);
+    if (maze.isWall(x, y))
+      return;
+
+    int state = maze.XYtoState(x, y);
+    maze.putWall(x, y, true);
+    model.transitions.unlink(state);
+    model.transitions.link(maze, state);
+    relinkNeighbors(x, y);
+    model.sensors.fill(maze, state);
+
+    for (OnlineFilter filter : filters)
+      filter.exclude(state, model.prior);
+  }
+
+  /**
+   * Turns a wall cell into floor, with the color it had before (or the
+   * first color if it never had one). Does nothing if it is floor already.
+   */
+  public void setFloor(int x, int y) {
+    checkBounds(x, y);
+    if (!maze.isWall(x, y))
+      return;
+
+    maze.putWall(x, y, false);
+    int state = maze.XYtoState(x, y);
+    model.transitions.link(maze, state);
+    relinkNeighbors(x, y);
+    model.sensors.fill(maze, state);
+  }
+
+  /**
+   * Repaints a cell with one of Maze.colorSet. Walls keep the color for when
+   * they turn back into floor.
+   */
+  public void setColor(int x, int y, char color) {
+    checkBounds(x, y);
+    int index = -1;
+    for (int c = 0; c < Maze.colorSet.length; c++)
+      if (Maze.colorSet[c] == color)
+        index = c;
+    if (index < 0)
+      throw new IllegalArgumentException("Unknown color '" + color + "'");
+
+    maze.putColor(x, y, index);
+    model.sensors.fill(maze, y * maze.width + x);
+  }
+
+  // The four neighbors' moves change with the cell between them
+  private void relinkNeighbors(int x, int y) {
+    for (int a = 0; a < TransitionModel.MAX_MOVES; a++) {
+      int[] action = Maze.actions[a];
+      int nx = x + action[0], ny = y + action[1];
+      if ((nx != x || ny != y) && maze.isLegal(nx, ny)) {
+        int neighbor = maze.XYtoState(nx, ny);
+        model.transitions.unlink(neighbor);
+        model.transitions.link(maze, neighbor);
+      }
+    }
+  }
+
+  private void checkBounds(int x, int y) {
+    if (x < 0 || x >= maze.width || y < 0 || y >= maze.height)
+      throw new IndexOutOfBoundsException("(" + x + ", " + y + ") is outside the "
+          + maze.width + " x " + maze.height + " maze");
+  }
+}
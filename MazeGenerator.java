@@ -0,0 +1,183 @@
+package probabalistic_reasoning;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.Random;
+import java.util.SplittableRandom;
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * Seeded random mazes: every cell is a wall with probability wallDensity,
+ * and every floor cell gets a color from Maze.colorSet drawn with the given
+ * weights.
+ *
+ * The cells are generated in parallel in fixed bands, each with its own
+ * pair of SplittableRandom streams (walls and colors) split from the seed
+ * in band order. The same seed and size always give the same maze, on any
+ * number of threads, and the walls don't depend on the color weights.
+ * Bands line up with the words of the packed wall and color arrays, so
+ * bands never share a word.
+ */
+public class MazeGenerator {
+  // Band size in words of the wall bitset
+  private static final int BAND_WORDS = 1 << 10;
+
+  public final int width, height;
+  public final double wallDensity;
+  public final long seed;
+
+  private final double[] cumulative; // Running sum of the color weights, ending at 1
+
+  /**
+   * A generator with all colors equally likely
+   */
+  public MazeGenerator(int width, int height, double wallDensity, long seed) {
+    this(width, height, wallDensity, null, seed);
+  }
+
+  /**
+   * colorWeights has one weight per entry of Maze.colorSet (null for equal
+   * weights); they need not sum to one
+   */
+  public MazeGenerator(int width, int height, double wallDensity, double[] colorWeights, long seed) {
+    if (width < 0 || height < 0 || (long) width * height > Integer.MAX_VALUE)
+      throw new IllegalArgumentException("Can't make a " + width + " x " + height + " maze");
+    if (wallDensity < 0.0 || wallDensity > 1.0)
+      throw new IllegalArgumentException("Wall density must be in [0, 1], got " + wallDensity);
+    if (colorWeights != null && colorWeights.length != Maze.colorSet.length)
+      throw new IllegalArgumentException("Need " + Maze.colorSet.length + " color weights, got "
+          + colorWeights.length);
+
+    this.width = width;
+    this.height = height;
+    this.wallDensity = wallDensity;
+    this.seed = seed;
+
+    cumulative = new double[Maze.colorSet.length];
+    double total = 0.0;
+    for (int c = 0; c < cumulative.length; c++) {
+      double weight = (colorWeights == null) ? 1.0 : colorWeights[c];
+      if (weight < 0.0)
+        throw new IllegalArgumentException("Color weights can't be negative, got " + weight);
+      total += weight;
+      cumulative[c] = total;
+    }
+    if (total <= 0.0)
+      throw new IllegalArgumentException("Color weights sum to zero");
+    for (int c = 0; c < cumulative.length; c++)
+      cumulative[c] /= total;
+    cumulative[cumulative.length - 1] = 1.0;
+  }
+
+  /**
+   * Builds the maze in memory. Paths on it are drawn from new Random(seed).
+   */
+  public Maze generate() {
+    int colorBits = Maze.colorBitsFor(Maze.colorSet.length);
+    int perWord = 64 / colorBits;
+    int cells = width * height;
+    long[] walls = new long[Maze.words(cells, 64)];
+    long[] colors = new long[Maze.words(cells, perWord)];
+
+    fill(walls, colors, colorBits);
+    return Maze.fromBits(width, height, walls, colors, colorBits, new Random(seed));
+  }
+
+  /**
+   * Writes the maze as a .maz file (top row first). The file holds walls
+   * only; a maze read back from it is colored by Maze.colorIn().
+   */
+  public void write(Path file) throws IOException {
+    long[] walls = new long[Maze.words(width * height, 64)];
+    fill(walls, null, Maze.colorBitsFor(Maze.colorSet.length));
+
+    try (FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE,
+        StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+      ByteBuffer buf = ByteBuffer.allocate(Math.max(1 << 20, width + 1));
+      for (int y = height - 1; y >= 0; y--) {
+        if (buf.remaining() < width + 1)
+          drain(channel, buf);
+        int cell = y * width;
+        for (int x = 0; x < width; x++, cell++)
+          buf.put((walls[cell >>> 6] & (1L << (cell & 63))) != 0 ? (byte) '#' : (byte) '.');
+        buf.put((byte) '\n');
+      }
+      drain(channel, buf);
+    }
+  }
+
+  // Draws the walls (and the colors, if colors isn't null) band by band
+  private void fill(long[] walls, long[] colors, int colorBits) {
+    int cells = width * height;
+    int perWord = 64 / colorBits;
+    // A multiple of 64 and of perWord, so no word straddles two bands. The
+    // same with or without colors, so write() draws the same walls.
+    int bandCells = BAND_WORDS * 64 * perWord;
+    int bands = (cells + bandCells - 1) / bandCells;
+
+    SplittableRandom root = new SplittableRandom(seed);
+    SplittableRandom[] wallRng = new SplittableRandom[bands];
+    SplittableRandom[] colorRng = new SplittableRandom[bands];
+    for (int b = 0; b < bands; b++) {
+      wallRng[b] = root.split();
+      colorRng[b] = root.split();
+    }
+
+    if (bands > 0)
+      ForkJoinPool.commonPool().invoke(new ChunkTask(b -> {
+        int from = b * bandCells;
+        int to = (int) Math.min((long) from + bandCells, cells);
+        SplittableRandom wallDraws = wallRng[b];
+        SplittableRandom colorDraws = colorRng[b];
+
+        for (int cell = from; cell < to; cell++) {
+          if (wallDraws.nextDouble() < wallDensity) {
+            walls[cell >>> 6] |= 1L << (cell & 63);
+          } else if (colors != null) {
+            long color = pickColor(colorDraws.nextDouble());
+            colors[cell / perWord] |= color << ((cell % perWord) * colorBits);
+          }
+        }
+      }, 0, bands));
+  }
+
+  private int pickColor(double u) {
+    int c = 0;
+    while (u >= cumulative[c] && c < cumulative.length - 1)
+      c++;
+    return c;
+  }
+
+  private static void drain(FileChannel channel, ByteBuffer buf) throws IOException {
+    buf.flip();
+    while (buf.hasRemaining())
+      channel.write(buf);
+    buf.clear();
+  }
+
+  /**
+   * Usage: MazeGenerator width height [wallDensity] [seed] [file]
+   * (defaults: 0.25, 0, output.maz)
+   */
+  public static void main(String[] args) throws IOException {
+    if (args.length < 2) {
+      System.err.println("Usage: MazeGenerator width height [wallDensity] [seed] [file]");
+      System.exit(1);
+    }
+
+    int width = Integer.parseInt(args[0]);
+    int height = Integer.parseInt(args[1]);
+    double density = (args.length > 2) ? Double.parseDouble(args[2]) : 0.25;
+    long seed = (args.length > 3) ? Long.parseLong(args[3]) : 0L;
+    Path file = Paths.get((args.length > 4) ? args[4] : "output.maz");
+
+    long start = System.nanoTime();
+    new MazeGenerator(width, height, density, seed).write(file);
+    System.out.printf("Wrote a %d x %d maze to %s in %.3f s%n", width, height, file,
+        (System.nanoTime() - start) / 1e9);
+  }
+}
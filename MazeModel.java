@@ -0,0 +1,92 @@
+package probabalistic_reasoning;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.Arrays;
+
+/**
+ * The read-only HMM for one maze: transition model, sensor model and the
+ * uniform prior over states. Nothing here changes after construction, except
+ * through a MazeEditor, so one instance can be shared by any number of
+ * threads and runs on the same maze.
+ */
+public class MazeModel {
+  public final Maze maze;
+  public final int stateCount;
+  public final TransitionModel transitions;
+  public final SensorModel sensors;
+  public final double[] prior; // Must not be modified
+
+  public MazeModel(Maze maze) {
+    this(maze, new SensorModel(maze));
+  }
+
+  public MazeModel(Maze maze, SensorModel sensors) {
+    this(maze, new TransitionModel(maze), sensors);
+  }
+
+  MazeModel(Maze maze, TransitionModel transitions, SensorModel sensors) {
+    this.maze = maze;
+    this.stateCount = maze.stateCount;
+    this.sensors = sensors;
+    this.transitions = transitions;
+
+    // All states are equi-probable
+    prior = new double[stateCount];
+    Arrays.fill(prior, 1.0 / stateCount);
+  }
+
+  public OnlineFilter newFilter() {
+    return new OnlineFilter(transitions, sensors, prior);
+  }
+
+  /**
+   * One robot's belief on this model, for tracking many at once
+   */
+  public LocalizationSession newSession(long id) {
+    return new LocalizationSession(id, this);
+  }
+
+  public Smoother newSmoother() {
+    return new Smoother(transitions, sensors, prior);
+  }
+
+  /**
+   * Filters and smooths several evidence sequences together
+   */
+  public SequenceBatch newBatch(char[][] evidence) {
+    return new SequenceBatch(transitions, sensors, prior, evidence);
+  }
+
+  /**
+   * Filtering, smoothing and Viterbi from one pair of sweeps
+   */
+  public FusedInference newInference(int maxSteps) {
+    return new FusedInference(transitions, sensors, prior, maxSteps);
+  }
+
+  public ViterbiDecoder newDecoder(int maxSteps) {
+    return new ViterbiDecoder(transitions, sensors, maxSteps);
+  }
+
+  /**
+   * A decoder keeping its backpointers in spillFile rather than on the heap
+   */
+  public ViterbiDecoder newDecoder(int maxSteps, Path spillFile) throws IOException {
+    return new ViterbiDecoder(transitions, sensors, maxSteps, spillFile);
+  }
+
+  /**
+   * Viterbi over the best beamWidth states of each step
+   */
+  public BeamDecoder newBeamDecoder(int beamWidth) {
+    return new BeamDecoder(transitions, sensors, beamWidth);
+  }
+
+  /**
+   * Draws paths and readings from this model
+   */
+  public PathSimulator newSimulator() {
+    return new PathSimulator(this);
+  }
+}
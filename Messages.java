@@ -0,0 +1,43 @@
+package probabalistic_reasoning;
+
+/**
+ * In-place helpers for the probability messages passed between steps
+ */
+public final class Messages {
+  private Messages() {}
+
+  /**
+   * Scales message so it sums to one, and returns the old sum
+   */
+  public static double normalize(double[] message) {
+    return normalize(message, message.length);
+  }
+
+  /**
+   * Normalizes the first length entries of message, and returns the old sum
+   */
+  public static double normalize(double[] message, int length) {
+    double sum = 0.0;
+    for (int i = 0; i < length; i++)
+      sum += message[i];
+
+    if (sum == 0.0)
+      throw new IllegalStateException("Evidence is impossible under the model");
+
+    double scale = 1.0 / sum;
+    for (int i = 0; i < length; i++)
+      message[i] *= scale;
+    return sum;
+  }
+
+  /**
+   * Index of the largest entry in message (the first one on ties)
+   */
+  public static int argmax(double[] message) {
+    int best = 0;
+    for (int i = 1; i < message.length; i++)
+      if (message[i] > message[best])
+        best = i;
+    return best;
+  }
+}
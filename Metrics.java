@@ -0,0 +1,204 @@
+package probabalistic_reasoning;
+
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.DoubleAccumulator;
+import java.util.concurrent.atomic.DoubleAdder;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Registry of what the solvers measure about themselves, by name: latency
+ * and allocation histograms and gauges of belief entropy and normalization
+ * constants (see Instrumentation for what is recorded where).
+ *
+ * Off by default. While off, the solvers only check one flag per step and
+ * record nothing. Any thread may record or take a snapshot at any time.
+ */
+public final class Metrics {
+  /**
+   * The solver phases measured per step. FusedInference (the driver's exact
+   * mode) runs a filtering and a Viterbi step in one pass over the states,
+   * so it reports them together as FUSED, with the filter's entropy and
+   * normalizer. Every other solver reports FILTER and VITERBI separately.
+   */
+  public enum Phase { FILTER, SMOOTH, VITERBI, FUSED }
+
+  // Normalizers below this are counted as underflow warnings: a step's
+  // message summed to so little that the next could round to zero
+  public static final double UNDERFLOW_WARNING = 1e-100;
+
+  private static volatile boolean enabled;
+  private static final Map<String, LatencyHistogram> histograms = new ConcurrentHashMap<>();
+  private static final Map<String, Gauge> gauges = new ConcurrentHashMap<>();
+  private static final Map<String, LongAdder> counters = new ConcurrentHashMap<>();
+  // Each phase's metrics, looked up once so a step records without building
+  // names or searching the maps; rebuilt by reset()
+  private static volatile PhaseMetrics[] phases = lookUpPhases();
+
+  private Metrics() {}
+
+  public static void enable() {
+    enabled = true;
+    Instrumentation.update();
+  }
+
+  public static void disable() {
+    enabled = false;
+    Instrumentation.update();
+  }
+
+  public static boolean isEnabled() {
+    return enabled;
+  }
+
+  /**
+   * The histogram of the given name, created empty if there isn't one. The
+   * values are nanoseconds for latencies and bytes for allocations.
+   */
+  public static LatencyHistogram histogram(String name) {
+    return histograms.computeIfAbsent(name, n -> new LatencyHistogram());
+  }
+
+  public static Gauge gauge(String name) {
+    return gauges.computeIfAbsent(name, n -> new Gauge());
+  }
+
+  public static LongAdder counter(String name) {
+    return counters.computeIfAbsent(name, n -> new LongAdder());
+  }
+
+  /**
+   * Forgets everything recorded so far
+   */
+  public static void reset() {
+    histograms.clear();
+    gauges.clear();
+    counters.clear();
+    phases = lookUpPhases();
+  }
+
+  /**
+   * The metrics a phase's steps are recorded into
+   */
+  static PhaseMetrics of(Phase phase) {
+    return phases[phase.ordinal()];
+  }
+
+  private static PhaseMetrics[] lookUpPhases() {
+    Phase[] all = Phase.values();
+    PhaseMetrics[] result = new PhaseMetrics[all.length];
+    for (Phase phase : all)
+      result[phase.ordinal()] = new PhaseMetrics(phase.name().toLowerCase(Locale.ROOT));
+    return result;
+  }
+
+  /**
+   * One phase's entries in the registry, named after the phase
+   */
+  static final class PhaseMetrics {
+    final LatencyHistogram nanos, bytes;
+    final Gauge entropy, normalizer;
+    final LongAdder underflowWarnings;
+
+    PhaseMetrics(String name) {
+      nanos = histogram(name + ".step.nanos");
+      bytes = histogram(name + ".step.bytes");
+      entropy = gauge(name + ".entropy");
+      normalizer = gauge(name + ".normalizer");
+      underflowWarnings = counter(name + ".underflowWarnings");
+    }
+  }
+
+  /**
+   * Everything recorded so far as one line of JSON (histograms and gauges
+   * with nothing in them are left out), with the time it was
+   * taken (milliseconds since the epoch)
+   */
+  public static String snapshot() {
+    StringBuilder out = new StringBuilder();
+    out.append("{\"time\":").append(System.currentTimeMillis());
+
+    out.append(",\"histograms\":{");
+    String sep = "";
+    for (Map.Entry<String, LatencyHistogram> e : new TreeMap<>(histograms).entrySet()) {
+      LatencyHistogram h = e.getValue();
+      if (h.count() == 0)
+        continue; // Registered up front for a phase that hasn't run
+      out.append(sep).append('"').append(e.getKey()).append("\":{\"count\":").append(h.count())
+          .append(",\"mean\":").append(number(h.mean()))
+          .append(",\"p50\":").append(h.percentile(0.5))
+          .append(",\"p99\":").append(h.percentile(0.99))
+          .append(",\"max\":").append(h.max()).append('}');
+      sep = ",";
+    }
+
+    out.append("},\"gauges\":{");
+    sep = "";
+    for (Map.Entry<String, Gauge> e : new TreeMap<>(gauges).entrySet()) {
+      Gauge g = e.getValue();
+      if (g.count() == 0)
+        continue;
+      out.append(sep).append('"').append(e.getKey()).append("\":{\"count\":").append(g.count())
+          .append(",\"last\":").append(number(g.last()))
+          .append(",\"min\":").append(number(g.min()))
+          .append(",\"max\":").append(number(g.max()))
+          .append(",\"mean\":").append(number(g.mean())).append('}');
+      sep = ",";
+    }
+
+    out.append("},\"counters\":{");
+    sep = "";
+    for (Map.Entry<String, LongAdder> e : new TreeMap<>(counters).entrySet()) {
+      out.append(sep).append('"').append(e.getKey()).append("\":").append(e.getValue().sum());
+      sep = ",";
+    }
+    return out.append("}}").toString();
+  }
+
+  // JSON has no infinities or NaN
+  private static String number(double value) {
+    return (Double.isNaN(value) || Double.isInfinite(value)) ? "null" : Double.toString(value);
+  }
+
+  /**
+   * The last, smallest, largest and mean of a stream of values
+   */
+  public static final class Gauge {
+    private final DoubleAccumulator min = new DoubleAccumulator(Math::min, Double.POSITIVE_INFINITY);
+    private final DoubleAccumulator max = new DoubleAccumulator(Math::max, Double.NEGATIVE_INFINITY);
+    private final DoubleAdder sum = new DoubleAdder();
+    private final LongAdder count = new LongAdder();
+    private volatile double last = Double.NaN;
+
+    public void record(double value) {
+      last = value;
+      min.accumulate(value);
+      max.accumulate(value);
+      sum.add(value);
+      count.increment();
+    }
+
+    public long count() {
+      return count.sum();
+    }
+
+    public double last() {
+      return last;
+    }
+
+    public double min() {
+      return min.get();
+    }
+
+    public double max() {
+      return max.get();
+    }
+
+    public double mean() {
+      long n = count.sum();
+      return (n == 0) ? Double.NaN : sum.sum() / n;
+    }
+  }
+}
@@ -0,0 +1,86 @@
+package probabalistic_reasoning;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Appends a Metrics snapshot to a file as one JSON line every period, and
+ * once more on close(), so a run can be followed with `tail -f` and plotted
+ * afterwards. Enables Metrics while it is open.
+ */
+public class MetricsExporter implements Closeable {
+  /**
+   * System property naming a metrics file (see fromSystemProperty())
+   */
+  public static final String PROPERTY = "maze.metrics";
+
+  public final Path file;
+
+  private final ScheduledExecutorService timer;
+
+  /**
+   * Exports to the given file (appending if it exists) every periodMillis
+   * milliseconds, or only on close() if periodMillis is 0
+   */
+  public MetricsExporter(Path file, long periodMillis) {
+    if (periodMillis < 0)
+      throw new IllegalArgumentException("Period can't be negative, got " + periodMillis);
+    this.file = file;
+    Metrics.enable();
+
+    if (periodMillis > 0) {
+      timer = Executors.newSingleThreadScheduledExecutor(task -> {
+        Thread thread = new Thread(task, "metrics-exporter");
+        thread.setDaemon(true);
+        return thread;
+      });
+      timer.scheduleAtFixedRate(() -> {
+        try {
+          export();
+        } catch (IOException e) {
+          System.err.println("Can't export metrics to " + file + ": " + e.getMessage());
+        }
+      }, periodMillis, periodMillis, TimeUnit.MILLISECONDS);
+    } else {
+      timer = null;
+    }
+  }
+
+  /**
+   * An exporter to the file named by -Dmaze.metrics=file, every second, or
+   * null if the property isn't set
+   */
+  public static MetricsExporter fromSystemProperty() {
+    String name = System.getProperty(PROPERTY);
+    return (name == null || name.isEmpty()) ? null : new MetricsExporter(Paths.get(name), 1000);
+  }
+
+  /**
+   * Appends a snapshot now
+   */
+  public synchronized void export() throws IOException {
+    Files.write(file, (Metrics.snapshot() + "\n").getBytes(StandardCharsets.UTF_8),
+        StandardOpenOption.CREATE, StandardOpenOption.APPEND, StandardOpenOption.WRITE);
+  }
+
+  /**
+   * Stops the timer, appends a last snapshot and disables Metrics
+   */
+  public void close() throws IOException {
+    if (timer != null)
+      timer.shutdownNow();
+    try {
+      export();
+    } finally {
+      Metrics.disable();
+    }
+  }
+}
@@ -0,0 +1,325 @@
+package probabalistic_reasoning;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * A directory of compiled maze models, so a restart maps a model in from disk
+ * instead of parsing the maze, coloring it and building the tables again.
+ *
+ * Entries are named by a SHA-256 key over the .maz file's bytes, the color
+ * set, the sensor accuracy and the format version, so editing any of them
+ * just misses the cache. An entry is (little-endian):
+ *
+ *   int magic, int version, 32-byte key, int width, int height,
+ *   int stateCount, int colorCount, int colorBits, double accuracy,
+ *   colorCount chars, padded to 8 bytes
+ *
+ * followed by these tables, each padded to 8 bytes: walls, rank, stateCell,
+ * colors (the packed Maze), next, prev, moveProb, logMoveProb (the
+ * TransitionModel), likelihood, logLikelihood (the SensorModel). Loading an
+ * entry is a bulk copy of each mapped table into its array; nothing is
+ * recomputed.
+ */
+public class ModelCache {
+  public static final int MAGIC = 0x4d5a4d43; // "MZMC"
+  public static final int VERSION = 1;
+
+  // Largest piece of an entry mapped at once
+  private static final int MAP_CHUNK = 1 << 30;
+  private static final int KEY_BYTES = 32;
+  // Header up to the color chars
+  private static final int FIXED_HEADER = 8 + KEY_BYTES + 20 + 8;
+
+  public final Path dir;
+
+  public ModelCache(Path dir) {
+    this.dir = dir;
+  }
+
+  /**
+   * The model for the given maze file with the default sensor accuracy,
+   * from the cache if it's there
+   */
+  public MazeModel load(String mazeFile) throws IOException {
+    return load(mazeFile, SensorModel.DEFAULT_ACCURACY);
+  }
+
+  /**
+   * The model for the given maze file, mapped from the cache if there is an
+   * entry for it, otherwise built and written to the cache. A cache that
+   * can't be written to only costs the warm start.
+   */
+  public MazeModel load(String mazeFile, double accuracy) throws IOException {
+    byte[] key = key(Paths.get(mazeFile), Maze.colorSet, accuracy);
+    Path entry = entryFor(key);
+
+    if (Files.isRegularFile(entry)) {
+      MazeModel model = read(entry, key);
+      if (model != null)
+        return model;
+    }
+
+    Maze maze = Maze.readFromFile(mazeFile);
+    if (maze == null)
+      throw new IOException("Could not read maze from " + mazeFile);
+    MazeModel model = new MazeModel(maze, new SensorModel(maze, Maze.colorSet, accuracy));
+
+    try {
+      Files.createDirectories(dir);
+      Path tmp = Files.createTempFile(dir, entry.getFileName().toString(), ".tmp");
+      try {
+        write(model, key, tmp);
+        Files.move(tmp, entry, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+      } finally {
+        Files.deleteIfExists(tmp);
+      }
+    } catch (IOException e) {
+      // Still have the model; the next start just builds it again
+    }
+    return model;
+  }
+
+  /**
+   * Where the entry for the given key lives
+   */
+  public Path entryFor(byte[] key) {
+    StringBuilder name = new StringBuilder(2 * key.length + 4);
+    for (byte b : key)
+      name.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+    return dir.resolve(name.append(".mzc").toString());
+  }
+
+  /**
+   * SHA-256 over the format version, colors, accuracy and the maze file
+   * (which is mapped, not read into memory)
+   */
+  public static byte[] key(Path mazeFile, char[] colors, double accuracy) throws IOException {
+    MessageDigest digest;
+    try {
+      digest = MessageDigest.getInstance("SHA-256");
+    } catch (NoSuchAlgorithmException e) {
+      throw new IllegalStateException(e); // Every JVM has SHA-256
+    }
+
+    ByteBuffer params = ByteBuffer.allocate(16 + 2 * colors.length).order(ByteOrder.LITTLE_ENDIAN);
+    params.putInt(VERSION).putInt(colors.length).putDouble(accuracy);
+    for (char c : colors)
+      params.putChar(c);
+    digest.update(params.flip());
+
+    try (FileChannel channel = FileChannel.open(mazeFile, StandardOpenOption.READ)) {
+      long size = channel.size();
+      for (long pos = 0; pos < size; pos += MAP_CHUNK)
+        digest.update(channel.map(FileChannel.MapMode.READ_ONLY, pos, Math.min(MAP_CHUNK, size - pos)));
+    }
+    return digest.digest();
+  }
+
+  /**
+   * Writes a compiled model to the given file
+   */
+  public static void write(MazeModel model, byte[] key, Path file) throws IOException {
+    Maze maze = model.maze;
+    char[] colors = model.sensors.colors;
+    if (maze.isEditable())
+      throw new IllegalArgumentException("Models of editable mazes can't be cached");
+
+    try (FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE,
+        StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+      ByteBuffer header = ByteBuffer.allocate(headerSize(colors.length)).order(ByteOrder.LITTLE_ENDIAN);
+      header.putInt(MAGIC).putInt(VERSION).put(key);
+      header.putInt(maze.width).putInt(maze.height).putInt(model.stateCount);
+      header.putInt(colors.length).putInt(maze.colorBits()).putDouble(model.sensors.accuracy);
+      for (char c : colors)
+        header.putChar(c);
+      header.position(0);
+      while (header.hasRemaining())
+        channel.write(header);
+
+      long pos = header.capacity();
+      pos = put(channel, pos, maze.packedWalls());
+      pos = put(channel, pos, maze.packedRank());
+      pos = put(channel, pos, maze.packedStateCells());
+      pos = put(channel, pos, maze.packedColors());
+      pos = put(channel, pos, model.transitions.next);
+      pos = put(channel, pos, model.transitions.prev);
+      pos = put(channel, pos, model.transitions.moveProb);
+      pos = put(channel, pos, model.transitions.logMoveProb);
+      pos = put(channel, pos, model.sensors.likelihood);
+      put(channel, pos, model.sensors.logLikelihood);
+      channel.force(false);
+    }
+  }
+
+  /**
+   * Maps a compiled model in, or returns null if the file is not an entry
+   * for the given key (a stale or damaged entry)
+   */
+  public static MazeModel read(Path file, byte[] key) throws IOException {
+    try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+      long size = channel.size();
+      ByteBuffer header = ByteBuffer.allocate(FIXED_HEADER).order(ByteOrder.LITTLE_ENDIAN);
+      if (size < header.capacity())
+        return null;
+      channel.read(header, 0);
+      header.flip();
+
+      if (header.getInt() != MAGIC || header.getInt() != VERSION)
+        return null;
+      byte[] stored = new byte[KEY_BYTES];
+      header.get(stored);
+      if (!MessageDigest.isEqual(stored, key))
+        return null;
+
+      int width = header.getInt();
+      int height = header.getInt();
+      int stateCount = header.getInt();
+      int colorCount = header.getInt();
+      int colorBits = header.getInt();
+      double accuracy = header.getDouble();
+      // Sizes come from the file, so a damaged header mustn't wrap them
+      if (width < 0 || height < 0 || (long) width * height > Integer.MAX_VALUE
+          || stateCount < 0 || stateCount > width * height || colorCount < 0 || 2L * colorCount > size
+          || colorBits < 1 || colorBits > 32
+          || (long) stateCount * Math.max(TransitionModel.MAX_MOVES, colorCount) > Integer.MAX_VALUE)
+        return null;
+
+      ByteBuffer colorBuf = ByteBuffer.allocate(2 * colorCount).order(ByteOrder.LITTLE_ENDIAN);
+      channel.read(colorBuf, FIXED_HEADER);
+      colorBuf.flip();
+      char[] colors = new char[colorCount];
+      for (int c = 0; c < colorCount; c++)
+        colors[c] = colorBuf.getChar();
+
+      int cells = width * height;
+      int perWord = 64 / colorBits;
+      long[] walls = new long[Maze.words(cells, 64)];
+      int[] rank = new int[walls.length];
+      int[] stateCell = new int[stateCount];
+      long[] packedColors = new long[Maze.words(cells, perWord)];
+      int[] next = new int[stateCount * TransitionModel.MAX_MOVES];
+      int[] prev = new int[stateCount * TransitionModel.MAX_MOVES];
+      double[] moveProb = new double[stateCount];
+      double[] logMoveProb = new double[stateCount];
+      double[] likelihood = new double[colorCount * stateCount];
+      double[] logLikelihood = new double[colorCount * stateCount];
+
+      long expected = headerSize(colorCount)
+          + align(8L * walls.length) + align(4L * rank.length) + align(4L * stateCell.length)
+          + 8L * packedColors.length + align(4L * next.length) + align(4L * prev.length)
+          + 8L * (moveProb.length + logMoveProb.length + likelihood.length + logLikelihood.length);
+      if (size != expected)
+        return null;
+
+      long pos = headerSize(colorCount);
+      pos = get(channel, pos, walls);
+      pos = get(channel, pos, rank);
+      pos = get(channel, pos, stateCell);
+      pos = get(channel, pos, packedColors);
+      pos = get(channel, pos, next);
+      pos = get(channel, pos, prev);
+      pos = get(channel, pos, moveProb);
+      pos = get(channel, pos, logMoveProb);
+      pos = get(channel, pos, likelihood);
+      get(channel, pos, logLikelihood);
+
+      Maze maze = Maze.fromPacked(width, height, walls, rank, stateCell, packedColors, colorBits);
+      return new MazeModel(maze,
+          new TransitionModel(next, prev, moveProb, logMoveProb),
+          new SensorModel(colors, accuracy, likelihood, logLikelihood));
+    }
+  }
+
+  private static int headerSize(int colorCount) {
+    return align(FIXED_HEADER + 2 * colorCount);
+  }
+
+  private static int align(int bytes) {
+    return (bytes + 7) & ~7;
+  }
+
+  private static long align(long bytes) {
+    return (bytes + 7) & ~7L;
+  }
+
+  // Each table is copied through mappings of at most MAP_CHUNK bytes, and the
+  // next one starts on an 8-byte boundary
+
+  private static MappedByteBuffer map(FileChannel channel, FileChannel.MapMode mode, long pos, long bytes)
+      throws IOException {
+    MappedByteBuffer buf = channel.map(mode, pos, bytes);
+    buf.order(ByteOrder.LITTLE_ENDIAN);
+    return buf;
+  }
+
+  private static long put(FileChannel channel, long pos, int[] table) throws IOException {
+    for (int i = 0; i < table.length; ) {
+      int len = Math.min(table.length - i, MAP_CHUNK / Integer.BYTES);
+      map(channel, FileChannel.MapMode.READ_WRITE, pos, (long) len * Integer.BYTES).asIntBuffer().put(table, i, len);
+      pos += (long) len * Integer.BYTES;
+      i += len;
+    }
+    return align(pos);
+  }
+
+  private static long put(FileChannel channel, long pos, long[] table) throws IOException {
+    for (int i = 0; i < table.length; ) {
+      int len = Math.min(table.length - i, MAP_CHUNK / Long.BYTES);
+      map(channel, FileChannel.MapMode.READ_WRITE, pos, (long) len * Long.BYTES).asLongBuffer().put(table, i, len);
+      pos += (long) len * Long.BYTES;
+      i += len;
+    }
+    return pos;
+  }
+
+  private static long put(FileChannel channel, long pos, double[] table) throws IOException {
+    for (int i = 0; i < table.length; ) {
+      int len = Math.min(table.length - i, MAP_CHUNK / Double.BYTES);
+      map(channel, FileChannel.MapMode.READ_WRITE, pos, (long) len * Double.BYTES).asDoubleBuffer().put(table, i, len);
+      pos += (long) len * Double.BYTES;
+      i += len;
+    }
+    return pos;
+  }
+
+  private static long get(FileChannel channel, long pos, int[] table) throws IOException {
+    for (int i = 0; i < table.length; ) {
+      int len = Math.min(table.length - i, MAP_CHUNK / Integer.BYTES);
+      map(channel, FileChannel.MapMode.READ_ONLY, pos, (long) len * Integer.BYTES).asIntBuffer().get(table, i, len);
+      pos += (long) len * Integer.BYTES;
+      i += len;
+    }
+    return align(pos);
+  }
+
+  private static long get(FileChannel channel, long pos, long[] table) throws IOException {
+    for (int i = 0; i < table.length; ) {
+      int len = Math.min(table.length - i, MAP_CHUNK / Long.BYTES);
+      map(channel, FileChannel.MapMode.READ_ONLY, pos, (long) len * Long.BYTES).asLongBuffer().get(table, i, len);
+      pos += (long) len * Long.BYTES;
+      i += len;
+    }
+    return pos;
+  }
+
+  private static long get(FileChannel channel, long pos, double[] table) throws IOException {
+    for (int i = 0; i < table.length; ) {
+      int len = Math.min(table.length - i, MAP_CHUNK / Double.BYTES);
+      map(channel, FileChannel.MapMode.READ_ONLY, pos, (long) len * Double.BYTES).asDoubleBuffer().get(table, i, len);
+      pos += (long) len * Double.BYTES;
+      i += len;
+    }
+    return pos;
+  }
+}
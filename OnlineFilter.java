@@ -0,0 +1,124 @@
+package probabalistic_reasoning;
+
+/**
+ * Streaming HMM filter: takes sensor readings one at a time.
+ *
+ * Only the current forward message is kept (plus one scratch buffer), so the
+ * cost of each observation is constant and memory does not grow with the
+ * length of the trace.
+ */
+public class OnlineFilter {
+  // Less mass than this left after exclude() counts as none (the running sum
+  // may be off by rounding)
+  private static final double EMPTY = 1e-12;
+
+  public final TransitionModel transitions;
+  public final SensorModel sensors;
+  public final int stateCount;
+
+  private double[] belief;
+  private double[] scratch;
+  private int steps;
+  // Sum of belief: 1, except after exclude() until the next observe() or
+  // belief() normalizes it
+  private double mass;
+
+  public OnlineFilter(TransitionModel transitions, SensorModel sensors, double[] prior) {
+    this.transitions = transitions;
+    this.sensors = sensors;
+    this.stateCount = transitions.stateCount;
+
+    belief = new double[stateCount];
+    scratch = new double[stateCount];
+    reset(prior);
+  }
+
+  /**
+   * Forgets all readings and starts again from the given distribution,
+   * leaving out the states of wall cells (on a MazeEditor's model)
+   */
+  public void reset(double[] prior) {
+    restart(prior);
+    steps = 0;
+  }
+
+  // Copies prior into belief, except for states with no moves: the wall
+  // cells of an edited maze, which the robot can't be in. If any had weight,
+  // the rest is left for belief() or observe() to normalize.
+  private void restart(double[] prior) {
+    double sum = 0.0;
+    boolean masked = false;
+    for (int state = 0; state < stateCount; state++) {
+      double p = prior[state];
+      if (transitions.moveProb[state] == 0.0 && p != 0.0) {
+        p = 0.0;
+        masked = true;
+      }
+      belief[state] = p;
+      sum += p;
+    }
+
+    if (!(sum > 0.0))
+      throw new IllegalArgumentException("Prior has no weight on any floor cell");
+    mass = masked ? sum : 1.0;
+  }
+
+  /**
+   * Takes one move and one reading, and returns the new filtered distribution.
+   * The returned array is owned by the filter and is overwritten by the next
+   * call; copy it if it needs to be kept.
+   */
+  public double[] observe(char color) {
+    double[] swap;
+    long start = Instrumentation.on ? Instrumentation.begin() : 0L;
+
+    // f_1:t+1 = alpha * SensorModel_t+1 * TransitionTranspose * f_1:t
+    transitions.predict(belief, scratch);
+    sensors.observe(color, scratch);
+    double normalizer = Messages.normalize(scratch) / mass; // As if belief summed to 1
+
+    swap = belief;
+    belief = scratch;
+    scratch = swap;
+    mass = 1.0;
+
+    if (start != 0L)
+      Instrumentation.step(Metrics.Phase.FILTER, start, steps, belief, normalizer);
+    steps++;
+    return belief;
+  }
+
+  // Rules out a state whose cell has become a wall (see MazeEditor), in O(1):
+  // the rest of the belief is left unnormalized, which the next prediction
+  // doesn't mind, until observe() or belief() normalizes it. If the belief
+  // was all on that state, starts again from prior (less the walls).
+  void exclude(int state, double[] prior) {
+    mass -= belief[state];
+    belief[state] = 0.0;
+
+    if (!(mass > EMPTY))
+      restart(prior);
+  }
+
+  /**
+   * The current filtered distribution (owned by the filter)
+   */
+  public double[] belief() {
+    if (mass != 1.0) {
+      Messages.normalize(belief);
+      mass = 1.0;
+    }
+    return belief;
+  }
+
+  /**
+   * Number of readings taken since the last reset
+   */
+  public int steps() {
+    return steps;
+  }
+
+  public int mostLikelyState() {
+    return Messages.argmax(belief);
+  }
+}
@@ -0,0 +1,164 @@
+package probabalistic_reasoning;
+
+import java.util.Arrays;
+import java.util.random.RandomGenerator;
+
+/**
+ * Approximate filtering with a particle filter.
+ *
+ * Each particle is a robot location, kept in primitive x and y arrays. A
+ * reading moves every particle by a random legal action (the same rules as
+ * Maze.getPath), weights it by the sensor model, and then draws a new set
+ * with systematic resampling. The cost of a step depends only on the number
+ * of particles, not on the size of the maze, so this works on mazes far too
+ * big for an exact message.
+ */
+public class ParticleFilter {
+  public final Maze maze;
+  public final int particleCount;
+  public final double accuracy;
+
+  private final double wrong; // Likelihood of a reading that doesn't match the cell
+  private final RandomGenerator rand;
+
+  private int[] x, y;         // Particle locations
+  private int[] nextX, nextY; // Resampled locations, swapped in after each step
+  private final double[] weight;
+  private final int[] scratch = new int[Maze.actions.length];
+  private int steps;
+
+  public ParticleFilter(Maze maze, int particleCount, RandomGenerator rand) {
+    this(maze, particleCount, SensorModel.DEFAULT_ACCURACY, rand);
+  }
+
+  public ParticleFilter(Maze maze, int particleCount, double accuracy, RandomGenerator rand) {
+    if (particleCount < 1)
+      throw new IllegalArgumentException("Need at least one particle, got " + particleCount);
+    if (maze.stateCount == 0)
+      throw new IllegalArgumentException("Maze has no floor cells");
+
+    this.maze = maze;
+    this.particleCount = particleCount;
+    this.accuracy = accuracy;
+    this.wrong = (1.0 - accuracy) / (Maze.colorSet.length - 1);
+    this.rand = rand;
+
+    x = new int[particleCount];
+    y = new int[particleCount];
+    nextX = new int[particleCount];
+    nextY = new int[particleCount];
+    weight = new double[particleCount];
+    reset();
+  }
+
+  /**
+   * Spreads the particles uniformly over the floor cells
+   */
+  public void reset() {
+    int state;
+    for (int i = 0; i < particleCount; i++) {
+      do {
+        state = rand.nextInt(maze.stateCount);
+      } while (maze.isWall(maze.stateX(state), maze.stateY(state))); // Editable mazes only
+      x[i] = maze.stateX(state);
+      y[i] = maze.stateY(state);
+    }
+    steps = 0;
+  }
+
+  /**
+   * Moves every particle, weights it by the reading and resamples
+   */
+  public void observe(char color) {
+    double total = 0.0;
+    int legalMoves;
+    int[] action;
+
+    for (int i = 0; i < particleCount; i++) {
+      // Pick uniformly among the legal actions
+      legalMoves = 0;
+      for (int a = 0; a < Maze.actions.length; a++)
+        if (maze.isLegal(x[i] + Maze.actions[a][0], y[i] + Maze.actions[a][1]))
+          scratch[legalMoves++] = a;
+
+      action = Maze.actions[scratch[rand.nextInt(legalMoves)]];
+      x[i] += action[0];
+      y[i] += action[1];
+
+      weight[i] = (maze.getColor(x[i], y[i]) == color) ? accuracy : wrong;
+      total += weight[i];
+    }
+
+    if (total == 0.0)
+      throw new IllegalStateException("Every particle was ruled out by the reading '" + color + "'");
+
+    resample(total);
+    steps++;
+  }
+
+  // Systematic resampling: one random offset, then evenly spaced pointers
+  private void resample(double total) {
+    double spacing = total / particleCount;
+    double pointer = rand.nextDouble() * spacing;
+    double cumulative = weight[0];
+    int source = 0;
+    int[] swap;
+
+    for (int i = 0; i < particleCount; i++) {
+      while (pointer > cumulative && source < particleCount - 1)
+        cumulative += weight[++source];
+      nextX[i] = x[source];
+      nextY[i] = y[source];
+      pointer += spacing;
+    }
+
+    swap = x; x = nextX; nextX = swap;
+    swap = y; y = nextY; nextY = swap;
+  }
+
+  public int steps() {
+    return steps;
+  }
+
+  /**
+   * The particles as a distribution over states (O(n), for small mazes)
+   */
+  public void belief(double[] result) {
+    Arrays.fill(result, 0.0);
+    double share = 1.0 / particleCount;
+    for (int i = 0; i < particleCount; i++)
+      result[maze.XYtoState(x[i], y[i])] += share;
+  }
+
+  /**
+   * The state holding the most particles (O(P log P), independent of the maze size)
+   */
+  public int mostLikelyState() {
+    int[] states = nextX; // Free until the next resample
+    for (int i = 0; i < particleCount; i++)
+      states[i] = maze.XYtoState(x[i], y[i]);
+    Arrays.sort(states);
+
+    int best = states[0], bestRun = 0, run = 0;
+    for (int i = 0; i < particleCount; i++) {
+      run = (i > 0 && states[i] == states[i - 1]) ? run + 1 : 1;
+      if (run > bestRun) {
+        bestRun = run;
+        best = states[i];
+      }
+    }
+    return best;
+  }
+
+  /**
+   * Total variation distance between the particles and an exact belief.
+   * result is scratch space the size of the state count.
+   */
+  public double distanceFrom(double[] exact, double[] result) {
+    double distance = 0.0;
+    belief(result);
+    for (int state = 0; state < result.length; state++)
+      distance += Math.abs(result[state] - exact[state]);
+    return distance / 2.0;
+  }
+}
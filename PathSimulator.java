@@ -0,0 +1,127 @@
+package probabalistic_reasoning;
+
+import java.util.random.RandomGenerator;
+
+/**
+ * Draws robot paths and sensor readings from the model, for Monte Carlo runs.
+ *
+ * Maze.getPath() finds a start cell and each move by rejection: it draws
+ * cells and actions until one is legal, and works in coordinates. This
+ * draws straight from the legal moves instead. Each state's successors are
+ * packed into the front of its slot in a neighbor table built once, so a
+ * move is one bounded draw and one table load, and a start is a draw over
+ * the states (the floor cells) themselves. The distribution is the same
+ * (uniform start, uniform over legal moves, the sensor model's noise) but
+ * the draws are not, so a given generator gives different paths here than
+ * from getPath(). Nothing is allocated per step.
+ */
+public class PathSimulator {
+  public final int stateCount;
+  public final char[] colors;   // The sensor model's colors
+  public final double accuracy; // P(reading the true color)
+
+  // moves[s * MAX_MOVES + k] for k < moveCount[s] = the states reachable from s
+  private final int[] moves;
+  private final byte[] moveCount;
+  // Index into colors of each state's true color
+  private final byte[] stateColor;
+
+  public PathSimulator(MazeModel model) {
+    int M = TransitionModel.MAX_MOVES;
+    int[] next = model.transitions.next;
+
+    if (model.sensors.colorCount() > Byte.MAX_VALUE)
+      throw new IllegalArgumentException("Too many colors: " + model.sensors.colorCount());
+
+    stateCount = model.stateCount;
+    colors = model.sensors.colors;
+    accuracy = model.sensors.accuracy;
+    moves = new int[stateCount * M];
+    moveCount = new byte[stateCount];
+    stateColor = new byte[stateCount];
+
+    for (int state = 0; state < stateCount; state++) {
+      int count = 0;
+      for (int a = 0; a < M; a++) {
+        int to = next[state * M + a];
+        if (to >= 0)
+          moves[state * M + count++] = to;
+      }
+      moveCount[state] = (byte) count;
+      stateColor[state] = (byte) model.sensors.colorIndex(model.maze.stateColor(state));
+    }
+  }
+
+  /**
+   * A start state, uniform over the floor cells
+   */
+  public int start(RandomGenerator rand) {
+    int state;
+    do {
+      state = rand.nextInt(stateCount);
+    } while (moveCount[state] == 0); // A wall cell of an editable maze
+    return state;
+  }
+
+  /**
+   * The state after one move from the given one, uniform over its legal
+   * moves (staying put included)
+   */
+  public int move(int state, RandomGenerator rand) {
+    return moves[state * TransitionModel.MAX_MOVES + rand.nextInt(moveCount[state])];
+  }
+
+  /**
+   * Index into colors of a reading taken in the given state: the true color
+   * with probability accuracy, otherwise one of the others
+   */
+  public int sense(int state, RandomGenerator rand) {
+    int correct = stateColor[state];
+    if (rand.nextDouble() < accuracy)
+      return correct;
+    int wrong = rand.nextInt(colors.length - 1);
+    return (wrong >= correct) ? wrong + 1 : wrong;
+  }
+
+  public char read(int state, RandomGenerator rand) {
+    return colors[sense(state, rand)];
+  }
+
+  /**
+   * Fills states with a path and readings (if not null) with what the
+   * robot read along it. Both must be the same length.
+   */
+  public void simulate(int[] states, char[] readings, RandomGenerator rand) {
+    if (readings != null && readings.length != states.length)
+      throw new IllegalArgumentException(readings.length + " readings for " + states.length + " states");
+    if (states.length == 0)
+      return;
+
+    int state = start(rand);
+    for (int step = 0; ; ) {
+      states[step] = state;
+      if (readings != null)
+        readings[step] = colors[sense(state, rand)];
+      if (++step == states.length)
+        break;
+      state = move(state, rand);
+    }
+  }
+
+  /**
+   * Simulates as many steps as the trace was opened for, straight into it,
+   * with the true states if it keeps them
+   */
+  public void record(TraceFile.Writer out, RandomGenerator rand) {
+    if (out.length == 0)
+      return;
+
+    int state = start(rand);
+    for (long step = 0; ; ) {
+      out.append(colors[sense(state, rand)], state);
+      if (++step == out.length)
+        break;
+      state = move(state, rand);
+    }
+  }
+}
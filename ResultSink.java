@@ -0,0 +1,129 @@
+package probabalistic_reasoning;
+
+import java.io.Closeable;
+import java.io.IOException;
+
+/**
+ * Where a SchapireProblem reports what it finds. Every callback is optional;
+ * arrays passed in are owned by the caller and may be reused after the call
+ * returns.
+ */
+public interface ResultSink extends Closeable {
+  /**
+   * How much a console sink prints
+   */
+  enum Verbosity {
+    SILENT,  // Nothing
+    SUMMARY, // The Viterbi path and how often each solver found the real state
+    FULL     // The maze, models and every message (the old behaviour)
+  }
+
+  /**
+   * A sink that drops everything
+   */
+  ResultSink NONE = new ResultSink() {};
+
+  default void maze(Maze m) {}
+
+  default void path(int[] states, char[] evidence, char[] correctColors) {}
+
+  default void model(MazeModel model) {}
+
+  default void filtered(int step, int actualState, double[] belief) {}
+
+  /**
+   * Whether filtered() has to see whole beliefs. When it doesn't, solvers
+   * that can name their estimate without building an O(n) belief (particles)
+   * report through estimated() instead.
+   */
+  default boolean wantsBeliefs() {
+    return true;
+  }
+
+  /**
+   * The most likely state after filtering a step, from solvers that skip
+   * the dense belief
+   */
+  default void estimated(int step, int actualState, int state) {}
+
+  default void smoothed(int step, int actualState, double[] belief) {}
+
+  /**
+   * Total variation distance between an approximate filtered belief and the
+   * exact one at the same step
+   */
+  default void approximation(int step, double distance) {}
+
+  /**
+   * Share of the filtered probability mass a beam decoder pruned at a step
+   */
+  default void pruned(int step, double mass) {}
+
+  default void bestPath(int[] states, double probability) {}
+
+  default void close() throws IOException {}
+
+  /**
+   * A sink that passes everything on to both a and b
+   */
+  static ResultSink tee(ResultSink a, ResultSink b) {
+    return new ResultSink() {
+      public void maze(Maze m) {
+        a.maze(m);
+        b.maze(m);
+      }
+
+      public void path(int[] states, char[] evidence, char[] correctColors) {
+        a.path(states, evidence, correctColors);
+        b.path(states, evidence, correctColors);
+      }
+
+      public void model(MazeModel model) {
+        a.model(model);
+        b.model(model);
+      }
+
+      public void filtered(int step, int actualState, double[] belief) {
+        a.filtered(step, actualState, belief);
+        b.filtered(step, actualState, belief);
+      }
+
+      public boolean wantsBeliefs() {
+        return a.wantsBeliefs() || b.wantsBeliefs();
+      }
+
+      public void estimated(int step, int actualState, int state) {
+        a.estimated(step, actualState, state);
+        b.estimated(step, actualState, state);
+      }
+
+      public void smoothed(int step, int actualState, double[] belief) {
+        a.smoothed(step, actualState, belief);
+        b.smoothed(step, actualState, belief);
+      }
+
+      public void approximation(int step, double distance) {
+        a.approximation(step, distance);
+        b.approximation(step, distance);
+      }
+
+      public void pruned(int step, double mass) {
+        a.pruned(step, mass);
+        b.pruned(step, mass);
+      }
+
+      public void bestPath(int[] states, double probability) {
+        a.bestPath(states, probability);
+        b.bestPath(states, probability);
+      }
+
+      public void close() throws IOException {
+        try {
+          a.close();
+        } finally {
+          b.close();
+        }
+      }
+    };
+  }
+}
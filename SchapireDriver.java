@@ -1,384 +1,273 @@
 package probabalistic_reasoning;
 
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
 import java.util.Arrays;
-import java.text.DecimalFormat;
-import java.util.LinkedList;
 
 public class SchapireDriver {
-  // Variables
-  private static final int mazeDimension = 4;
-  public static Maze m;
   public static final int pathLen = 10;
 
   // File with the maze in it
   public static final String mazeFile = "./simple1.maz";
 
 
+  /**
+   * One run on a maze: a random path, the readings taken along it and the
+   * solvers' answers. The model is the only part that isn't per run; it is
+   * read-only and can be shared by any number of runs and threads (see
+   * LocalizationSession for per-robot state on a shared model without the
+   * rest of a run).
+   */
   public static class SchapireProblem {
-    public int mazeDimension;
     public int stateCount;
     public Maze m;
-    DecimalFormat f = new DecimalFormat("#0.000"); 
+
+    // Per run
     public int[] randomPath;
     public char[] correctColors;
     public char[] evidence;
 
-    public double[][] transitionModel;
-    public double[][] transitionTranspose;
+    public MazeModel model; // Read-only; can be shared with other runs on this maze
+
+    public TransitionModel transitions;
 
-    public double[][] rSensorModel;
-    public double[][] bSensorModel;
-    public double[][] ySensorModel;
-    public double[][] gSensorModel;
+    public SensorModel sensors;
 
     public double[] forwardInitialCondition;
     public double[] backwardInitialCondition;
 
-    public double[][] viterbiMessages; // Holds probabilities of optimal path to that state (at that step)
-    public int[][] viterbiBackchains; // Holds the backchain accross steps
+    public ViterbiDecoder viterbi; // Log-space decoder, made by the first exact solveBestPath()
+
+    public ResultSink sink; // Where the models and every message are reported
+
+    public enum FilterMode { EXACT, STENCIL, SCAN, PARTICLE, BEAM }
+
+    // Exact filtering (over neighbor tables, as a grid stencil, or as a
+    // parallel-in-time scan), or a particle filter whose cost doesn't grow
+    // with the maze. BEAM filters exactly but decodes over a beam.
+    public FilterMode filterMode = FilterMode.EXACT;
+    public int particleCount = 1000;
+    public int beamWidth = 100; // States kept per step in BEAM mode
+    public int threads = 1; // Bands in STENCIL mode, scan threads in SCAN mode
+
+    // Mazes up to this many states also run the exact filter in particle
+    // mode, to report how far off the particles are
+    public static final int EXACT_COMPARISON_LIMIT = 1 << 16;
 
-    public SchapireProblem(Maze maze, int dim, int pLen) {
-      mazeDimension = dim;
+    public SchapireProblem(Maze maze, int pLen) {
+      this(maze, pLen, new ConsoleSink(ResultSink.Verbosity.FULL));
+    }
+
+    public SchapireProblem(Maze maze, int pLen, ResultSink sink) {
+      this(maze, null, pLen, sink);
+    }
+
+    /**
+     * A problem on a model that was already built (e.g. loaded from a
+     * ModelCache), so setUp() doesn't build it again
+     */
+    public SchapireProblem(MazeModel model, int pLen, ResultSink sink) {
+      this(model.maze, model, pLen, sink);
+    }
+
+    private SchapireProblem(Maze maze, MazeModel built, int pLen, ResultSink sink) {
+      this.sink = sink;
       m = maze;
-      stateCount = dim * dim;
+      stateCount = m.stateCount; // Only floor cells are states
 
       randomPath = m.getPath(pLen);
       correctColors = m.getCorrectColorPath(randomPath);
       evidence = m.getColorPath(randomPath);
 
-      viterbiMessages = new double[pLen][stateCount];
-      viterbiBackchains = new int[pLen][stateCount];
-
-      printPath();
-      setUp();
+      sink.maze(m);
+      sink.path(randomPath, evidence, correctColors);
+      if (built == null)
+        setUp();
+      else
+        setUp(built);
     }
 
     /**
      * Builds the transition and sensor models for the Schapire Problem
      */
     public void setUp() {
-      double initProb;
-      char c; // Color
-      int[] XY; // For transitioning between state number and maze location
-      int state;
-      double[][] model;
-
-      int legalMoves;
-      double moveProb;
-      int nextState;
-
-      /* Build the sensor Models */
-      // Sensor model for red
-      c = 'r';
-      model = new double[stateCount][stateCount]; // Initialized to zeros
-      for (state = 0; state < stateCount; state++) {
-        XY = Maze.StatetoXY(state);
-        if (m.getColor(XY[0], XY[1]) == c) // This state is the given color
-          model[state][state] = 0.88;
-        else // The state is not the given color
-          model[state][state] = 0.04;
-      }
-      rSensorModel = model;
-
-      // Sensor model for blue
-      c = 'b';
-      model = new double[stateCount][stateCount]; // Initialized to zeros
-      for (state = 0; state < stateCount; state++) {
-        XY = Maze.StatetoXY(state);
-        if (m.getColor(XY[0], XY[1]) == c) // This state is the given color
-          model[state][state] = 0.88;
-        else // The state is not the given color
-          model[state][state] = 0.04;
-      }
-      bSensorModel = model;
-
-      // Sensor model for green
-      c = 'g';
-      model = new double[stateCount][stateCount]; // Initialized to zeros
-      for (state = 0; state < stateCount; state++) {
-        XY = Maze.StatetoXY(state);
-        if (m.getColor(XY[0], XY[1]) == c) // This state is the given color
-          model[state][state] = 0.88;
-        else // The state is not the given color
-          model[state][state] = 0.04;
-      }
-      gSensorModel = model;
-
-      // Sensor model for yellow
-      c = 'y';
-      model = new double[stateCount][stateCount]; // Initialized to zeros
-      for (state = 0; state < stateCount; state++) {
-        XY = Maze.StatetoXY(state);
-        if (m.getColor(XY[0], XY[1]) == c) // This state is the given color
-          model[state][state] = 0.88;
-        else // The state is not the given color
-          model[state][state] = 0.04;
-      }
-      ySensorModel = model;
-
-      // Sanity Check
-      System.out.println("Red Sensor Model:");
-      printMatrix(rSensorModel, stateCount);
-      System.out.println("Blue Sensor Model:");
-      printMatrix(bSensorModel, stateCount);
-      System.out.println("Green Sensor Model:");
-      printMatrix(gSensorModel, stateCount);
-      System.out.println("Yellow Sensor Model:");
-      printMatrix(ySensorModel, stateCount);
-
-
-
-      /* Build the transition Model */
-      // For each state in the system
-      transitionModel = new double[stateCount][stateCount];
-      for (state = 0; state < stateCount; state++) {
-        legalMoves = 0;
-        moveProb = 0.0;
-        XY = Maze.StatetoXY(state); // Get the (x,y) coordinates of this state
-
-        // Find out how many available actions there are
-        for (int[] action : Maze.actions)
-          if (m.isLegal(XY[0] + action[0], XY[1] + action[1]))
-            legalMoves += 1;
-
-        if (legalMoves == 0) // Edge case of state being on a wall surrounded by walls
-          moveProb = 0.0;
-        else
-          moveProb = 1.0 / legalMoves;
-
-        // Fill in with probability of transitioning from state -> nextState
-        for (int[] action : Maze.actions) {
-          if (m.isLegal(XY[0] + action[0], XY[1] + action[1])) {
-            nextState = Maze.XYtoState(XY[0] + action[0], XY[1] + action[1]);
-            transitionModel[state][nextState] = moveProb;
-          }
-        }
-      }
-
-      /* Sanity Check */
-      System.out.println("Transition Table: ");
-      printMatrix(transitionModel, stateCount);
-
-      /* Build its transpose (for Filtering equation) */
-      // This loop has god-awful locality. Sean Smith would kill me.
-      transitionTranspose = new double[stateCount][stateCount];
-      for (int y = 0; y < stateCount; y++)
-        for (int x = 0; x < stateCount; x++)
-          transitionTranspose[y][x] = transitionModel[x][y]; 
+      /* Build the sensor and transition Models */
+      // One likelihood vector per color (the diagonal of each sensor matrix),
+      // and sparse neighbor tables where only legal moves take up space
+      long start = Instrumentation.on ? Instrumentation.begin() : 0L;
+      MazeModel built = new MazeModel(m);
+      if (start != 0L)
+        Instrumentation.modelBuilt(start, built.stateCount);
+      setUp(built);
+    }
 
-      System.out.println("Transpose of Transition Table: ");
-      printMatrix(transitionTranspose, stateCount);
+    private void setUp(MazeModel built) {
+      model = built;
+      viterbi = null; // Its backchains were sized for the old model
+      sensors = model.sensors;
+      transitions = model.transitions;
 
       /* Build the backward initial condtion */
       backwardInitialCondition = new double[stateCount];
       Arrays.fill(backwardInitialCondition, 1.0);
-      System.out.println("\nInitial Condition (Backward):");
-      printMessage(backwardInitialCondition, mazeDimension);
 
       /* Build the forward initial condition */
-      initProb = 1.0 / stateCount;          // All states are equi-probable 
-      forwardInitialCondition = new double[stateCount];
-      Arrays.fill(forwardInitialCondition, initProb);
-      System.out.println("\nInitial Condition (Forward):");
-      printMessage(forwardInitialCondition, mazeDimension);
+      forwardInitialCondition = model.prior; // All states are equi-probable
 
+      sink.model(model);
     }
 
     /**
      * Implements Markov Chain Filtering to produce probability distributions
      */
     public void solveFiltering() {
-      double[][] sensorModel = null;
-      double[] forwardMessage;
-      int[] XY;
-
-      // Initialize with the initial probability distribution
-      forwardMessage = forwardInitialCondition;
-
-      for (int step = 0; step < randomPath.length; step++) {
-        // Select the appropriate sensor model based on the evidence
-        switch (evidence[step]) {
-          case 'r':   sensorModel = rSensorModel;
-                      break;
-          case 'b':   sensorModel = bSensorModel;
-                      break;
-          case 'g':   sensorModel = gSensorModel;
-                      break;
-          case 'y':   sensorModel = ySensorModel;
-                      break;
+      if (filterMode == FilterMode.PARTICLE) {
+        solveParticleFiltering();
+        return;
+      }
+      if (filterMode == FilterMode.STENCIL) {
+        solveStencilFiltering();
+        return;
+      }
+      if (filterMode == FilterMode.SCAN) {
+        try (TimeScan scan = new TimeScan(model, threads)) {
+          double[][] filtered = scan.filter(evidence);
+          for (int step = 0; step < randomPath.length; step++)
+            sink.filtered(step, randomPath[step], filtered[step]);
         }
-        
-        // f_1:t+1 = alpha * SensorModel_t+1 * TransitionTranspose * f_1:t
-        forwardMessage = normalize(
-                          matrixMultiply(sensorModel, 
-                            matrixMultiply(transitionTranspose, forwardMessage)));
-
-        // Step one is the starting point for viterbi optimal-path finding
-        if (step == 0)
-          viterbiMessages[0] = forwardMessage;
+        return;
+      }
 
-        System.out.println("\nFiltered Distribuition at step " + (step+1) + ": ");
-        System.out.println("(Real location is state " + randomPath[step] + ")");
-        printMessage(forwardMessage, mazeDimension);
+      // Readings are streamed through a single forward message
+      OnlineFilter filter = model.newFilter();
+      double[] forwardMessage;
 
+      for (int step = 0; step < randomPath.length; step++) {
+        forwardMessage = filter.observe(evidence[step]);
+        sink.filtered(step, randomPath[step], forwardMessage);
       }
     }
 
     /**
-     * Implements the Viterbi Algorithm to find the optimal path
+     * Exact filtering with the grid stencil kernel (vectorized when the
+     * jdk.incubator.vector module is loaded)
      */
-    public void solveBestPath() {
-      int maxState, nextStateBack; 
-      double maxVal;
-      double tempVal;
-      double[][] sensorModel = null;
-
-      LinkedList<Integer> optimalPath = new LinkedList<Integer>();
-
-      int currState, lastState;
-
+    public void solveStencilFiltering() {
+      GridFilter filter = new GridFilter(model);
+      double[] forwardMessage = new double[stateCount];
 
+      for (int step = 0; step < randomPath.length; step++) {
+        filter.observe(evidence[step]);
+        filter.belief(forwardMessage);
+        sink.filtered(step, randomPath[step], forwardMessage);
+      }
+    }
 
-      // Setup the path lengths
-      Arrays.fill(viterbiBackchains[0], -1);
-
-      // Loop through each step in the path
-      for (int step = 1; step < randomPath.length; step++) {
-        double[] viterbiMessage = new double[stateCount];
-
-        // Loop through each possible current state to fill out the viterbi message
-        for (currState = 0; currState < stateCount; currState++) {
-          maxState = -1;
-          maxVal = 0.0;
+    /**
+     * Approximates filtering with particles, comparing against the exact
+     * filter on small mazes. Dense beliefs are only built when the sink or the
+     * comparison needs them, so otherwise each step costs O(P log P) whatever
+     * the maze size.
+     */
+    public void solveParticleFiltering() {
+      ParticleFilter particles = new ParticleFilter(m, particleCount, sensors.accuracy, m.rand);
+      OnlineFilter exact = (stateCount <= EXACT_COMPARISON_LIMIT) ? model.newFilter() : null;
+      boolean dense = sink.wantsBeliefs();
+      double[] belief = (dense || exact != null) ? new double[stateCount] : null;
 
-          // Loop through each possible last state
-          for (lastState = 0; lastState < stateCount; lastState++) {
-            // Get the probability of an optimal path to the last state 
-            // times the probability of transitioning from the last state to the current
-            tempVal = viterbiMessages[step - 1][lastState] * transitionModel[lastState][currState];
+      for (int step = 0; step < randomPath.length; step++) {
+        particles.observe(evidence[step]);
 
-            if (tempVal > maxVal) {
-              maxVal = tempVal;
-              maxState = lastState;
-            }
-          }
-          
-          // Update this index in the viterbiMessage
-          viterbiMessage[currState] = maxVal;
-          viterbiBackchains[step][currState] = maxState;
+        if (dense) {
+          particles.belief(belief);
+          sink.filtered(step, randomPath[step], belief);
+        } else {
+          sink.estimated(step, randomPath[step], particles.mostLikelyState());
         }
 
-        // Having the probabilities correctly in the viterbiMessage,
-        // Find and apply the sensor model, normalize, and save in the global variable
-
-        // Select the appropriate sensor model based on the evidence
-        switch (evidence[step]) {
-          case 'r':   sensorModel = rSensorModel;
-                      break;
-          case 'b':   sensorModel = bSensorModel;
-                      break;
-          case 'g':   sensorModel = gSensorModel;
-                      break;
-          case 'y':   sensorModel = ySensorModel;
-                      break;
+        if (exact != null) {
+          exact.observe(evidence[step]);
+          sink.approximation(step, particles.distanceFrom(exact.belief(), belief));
         }
-
-        viterbiMessages[step] = normalize(
-                                  matrixMultiply(sensorModel,
-                                    viterbiMessage));
       }
+    }
 
-      // Loop through the last viterbiMessage to find the starting point for backchaining
-      maxState = -1;
-      maxVal = -1.0;
-      for (int i = 0; i < stateCount; i++) {
-        tempVal = viterbiMessages[randomPath.length - 1][i];
-        if (tempVal > maxVal) {
-          maxVal = tempVal;
-          maxState = i;
+    /**
+     * Implements the Viterbi Algorithm to find the optimal path
+     */
+    public void solveBestPath() {
+      if (filterMode == FilterMode.SCAN) {
+        try (TimeScan scan = new TimeScan(model, threads)) {
+          int[] optimalPath = scan.decode(evidence);
+          sink.bestPath(optimalPath, scan.bestProbability());
         }
+        return;
       }
 
-      currState = maxState;
-      optimalPath.addFirst(currState);
-      for (int step = randomPath.length - 1; step > 0; step--) {
-        nextStateBack = viterbiBackchains[step][currState];
-        optimalPath.addFirst(nextStateBack);
-        currState = nextStateBack;
+      if (filterMode == FilterMode.BEAM) {
+        BeamDecoder beam = model.newBeamDecoder(beamWidth);
+        int[] bestPath = beam.decode(forwardInitialCondition, evidence);
+        for (int step = 0; step < bestPath.length; step++)
+          sink.pruned(step, beam.prunedMass(step));
+        sink.bestPath(bestPath, beam.bestProbability());
+        return;
       }
 
-      // Print results
-      System.out.println("Found optimal path with probability " + maxVal + ":");
-      System.out.println(optimalPath);
+      // The backchains take O(states x steps), so only the exact decode
+      // allocates them
+      if (viterbi == null)
+        viterbi = model.newDecoder(randomPath.length);
+      int[] optimalPath = viterbi.decode(forwardInitialCondition, evidence);
+      sink.bestPath(optimalPath, viterbi.bestProbability());
     }
 
     /**
      * Implements Forward-Backward Algorithm to produce probability distributions
      */
     public void solveSmoothing() {
-      // We have to store the filtering approximations
-      double[][] fVals = new double[randomPath.length][stateCount];
-
-
-      double[][] sensorModel = null;
-      double[] forwardMessage;
-      double[] backwardMessage;
-      double[] distribution;
-      int[] XY;
+      solveSmoothing(false);
+    }
 
-      // Initialize with the initial probability distribution
-      forwardMessage = forwardInitialCondition;
-      backwardMessage = backwardInitialCondition;
+    /**
+     * Forward-Backward, optionally storing only sqrt(T) forward messages and
+     * recomputing the rest during the backward pass (same results)
+     */
+    public void solveSmoothing(boolean checkpointed) {
+      Smoother smoother = model.newSmoother();
+      Smoother.Listener listener = (step, distribution) ->
+        sink.smoothed(step, randomPath[step], distribution);
+
+      if (checkpointed)
+        smoother.smoothCheckpointed(evidence, listener);
+      else
+        smoother.smooth(evidence, listener);
+    }
 
-      // Forward part of forward-backwards
-      for (int step = 0; step < randomPath.length; step++) {
-        // Select the appropriate sensor model based on the evidence
-        switch (evidence[step]) {
-          case 'r':   sensorModel = rSensorModel;
-                      break;
-          case 'b':   sensorModel = bSensorModel;
-                      break;
-          case 'g':   sensorModel = gSensorModel;
-                      break;
-          case 'y':   sensorModel = ySensorModel;
-                      break;
+    /**
+     * Exact filtering, smoothing and the Viterbi path from one forward and
+     * one backward sweep, reported to the sink in the same order as
+     * solveFiltering(), solveSmoothing() and solveBestPath(). In STENCIL
+     * mode the sweeps run on the grid stencil, over threads bands.
+     */
+    public FusedInference.Result solveAll() {
+      FusedInference.Result result;
+      if (filterMode == FilterMode.STENCIL) {
+        try (BandEngine engine = new BandEngine(GridStencil.create(model), threads)) {
+          result = new GridInference(engine, model.prior, randomPath.length).run(evidence);
         }
-        
-        // f_1:t+1 = alpha * SensorModel_t+1 * TransitionTranspose * f_1:t
-        forwardMessage = normalize(
-                          matrixMultiply(sensorModel, 
-                            matrixMultiply(transitionTranspose, forwardMessage)));
-
-        fVals[step] = forwardMessage; // Store this approximation
-
-
-
+      } else {
+        result = model.newInference(randomPath.length).run(evidence);
       }
 
-      // Backwards part of forward-backwards
-      for (int step = randomPath.length - 1; step >= 0; step--) {
-        distribution = normalize(messageMultiply(fVals[step], backwardMessage));
-
-        // Print the results at this step
-        System.out.println("\nSmoothed Distribuition at step " + (step+1) + ": ");
-        System.out.println("(Real location is state " + randomPath[step] + ")");
-        printMessage(distribution, mazeDimension);
-
-        // Select the appropriate sensor model based on the evidence
-        switch (evidence[step]) {
-          case 'r':   sensorModel = rSensorModel;
-                      break;
-          case 'b':   sensorModel = bSensorModel;
-                      break;
-          case 'g':   sensorModel = gSensorModel;
-                      break;
-          case 'y':   sensorModel = ySensorModel;
-                      break;
-        }
+      for (int step = 0; step < randomPath.length; step++)
+        sink.filtered(step, randomPath[step], result.filtered[step]);
+      for (int step = randomPath.length - 1; step >= 0; step--)
+        sink.smoothed(step, randomPath[step], result.smoothed[step]);
+      sink.bestPath(result.bestPath, result.bestProbability);
 
-        backwardMessage = matrixMultiply(transitionModel, 
-                            matrixMultiply(sensorModel,backwardMessage));
-      }
+      return result;
     }
 
     public static double[] messageMultiply(double[]m1, double[]m2) {
@@ -417,53 +306,142 @@ public class SchapireDriver {
 
       return normalized;
     }
+  }
 
-    public void printPath() {
-      int[] XY;
-      for (int i = 0; i < randomPath.length; i++) {
-        XY = Maze.StatetoXY(randomPath[i]);
-        System.out.println("Step " + (i+1) + ": (" + XY[0] + ", " + XY[1] + 
-            ")\tE = " + evidence[i] + " (correct = " + correctColors[i] + ")");
-      }
-    }
 
-    public void printMatrix(double[][] matrix, int dimension) {
-      System.out.print("[");
-      for (int y = 0; y < dimension; y++) {
-        System.out.print("\t");
-        for (int x = 0; x < dimension; x++) {
-          System.out.print(f.format(matrix[y][x]) + ", ");
-        }
-        System.out.print("\n");
-      }
-      System.out.println("]\n");
+  /**
+   * Streams a recorded trace through the exact filter and the Viterbi
+   * decoder, reporting to the sink as a SchapireProblem does (there is no
+   * smoothing, which would need the whole trace in memory). The true states
+   * come from the trace if it has them, otherwise they are reported as -1.
+   *
+   * The decoder's backpointers go to a temporary spill file, so the heap
+   * only ever holds O(states) however long the trace is.
+   */
+  public static void replay(MazeModel model, TraceFile.Reader trace, ResultSink sink) throws IOException {
+    Path spill = Files.createTempFile("replay", ".viterbi");
+    try {
+      replay(model, trace, sink, spill);
+    } finally {
+      Files.deleteIfExists(spill);
     }
-  
-    public void printMessage(double[] message, int dimension) {
-      System.out.print("[");
-      int l = dimension;
-      for (int i = 0; i < message.length; i++) {
-        if (l == dimension) {
-          System.out.print("\n\t");
-          l = 0;
-        }
+  }
 
-        System.out.print(f.format(message[i]) + ", ");
-        l++;
+  /**
+   * As above, spilling the backpointers to spillFile, or only filtering if
+   * spillFile is null
+   */
+  public static void replay(MazeModel model, TraceFile.Reader trace, ResultSink sink, Path spillFile)
+      throws IOException {
+    trace.check(model);
+    if (trace.length > Integer.MAX_VALUE)
+      throw new IllegalArgumentException("Trace of " + trace.length + " readings is too long to replay");
+
+    OnlineFilter filter = model.newFilter();
+    try (ViterbiDecoder viterbi = (spillFile != null) ? model.newDecoder((int) trace.length, spillFile) : null) {
+      sink.maze(model.maze);
+      sink.model(model);
+
+      trace.seek(0);
+      for (int step = 0; trace.hasNext(); step++) {
+        char reading = trace.next();
+        sink.filtered(step, trace.state(), filter.observe(reading));
+        if (viterbi == null)
+          continue;
+        if (step == 0)
+          viterbi.start(model.prior, reading);
+        else
+          viterbi.step(reading);
       }
-      System.out.print("\n]\n");
+      if (viterbi != null && trace.length > 0)
+        sink.bestPath(viterbi.bestPath(), viterbi.bestProbability());
     }
-  
   }
 
+  /**
+   * Usage: SchapireDriver [full|summary|silent] [beliefFile(.csv|.bin)|-] [exact|stencil[:threads]|scan[:threads]|particle[:count]|beam[:width]] [cacheDir|-] [record:traceFile|replay:traceFile]
+   *
+   * With -Dmaze.metrics=file, the solvers' metrics are appended to file as
+   * JSON lines (see MetricsExporter).
+   */
+  public static void main(String[] args) throws IOException {
+    MetricsExporter metrics = MetricsExporter.fromSystemProperty();
+    try {
+      run(args);
+    } finally {
+      if (metrics != null)
+        metrics.close();
+    }
+  }
 
-  public static void main(String[] args) {
-    m = Maze.readFromFile(mazeFile);
-    SchapireProblem prob = new SchapireProblem(m, mazeDimension, pathLen);
-    prob.solveFiltering();
+  private static void run(String[] args) throws IOException {
+    ResultSink.Verbosity level = ResultSink.Verbosity.FULL;
+    if (args.length > 0)
+      level = ResultSink.Verbosity.valueOf(args[0].toUpperCase());
+
+    ResultSink sink = new ConsoleSink(level);
+    if (args.length > 1 && !args[1].equals("-"))
+      sink = ResultSink.tee(sink, BeliefFileSink.forFile(Paths.get(args[1])));
+
+    // With a cache directory, a warm start maps the compiled model instead of
+    // building it
+    MazeModel model = null;
+    if (args.length > 3 && !args[3].equals("-"))
+      model = new ModelCache(Paths.get(args[3])).load(mazeFile);
+    Maze m = (model != null) ? model.maze : Maze.readFromFile(mazeFile);
+
+    // Replaying a recorded trace takes the place of a random path
+    if (args.length > 4 && args[4].startsWith("replay:")) {
+      if (model == null)
+        model = new MazeModel(m);
+      try (ResultSink results = sink;
+           TraceFile.Reader trace = new TraceFile.Reader(Paths.get(args[4].substring(7)))) {
+        replay(model, trace, results);
+      }
+      return;
+    }
 
-    prob.solveSmoothing();
-    prob.solveBestPath();
+    try (ResultSink results = sink) {
+      SchapireProblem prob = (model != null) ? new SchapireProblem(model, pathLen, results)
+                                             : new SchapireProblem(m, pathLen, results);
+      if (args.length > 2 && args[2].startsWith("stencil")) {
+        prob.filterMode = SchapireProblem.FilterMode.STENCIL;
+        if (args[2].indexOf(':') >= 0)
+          prob.threads = Integer.parseInt(args[2].substring(args[2].indexOf(':') + 1));
+      }
+      if (args.length > 2 && args[2].startsWith("scan")) {
+        prob.filterMode = SchapireProblem.FilterMode.SCAN;
+        if (args[2].indexOf(':') >= 0)
+          prob.threads = Integer.parseInt(args[2].substring(args[2].indexOf(':') + 1));
+        // The scan holds an n x n operator per chunk, so big mazes filter
+        // and decode sequentially instead
+        if (!TimeScan.fits(prob.stateCount, 4 * prob.threads)) {
+          System.err.println("Maze of " + prob.stateCount + " states is too big to scan; filtering exactly");
+          prob.filterMode = SchapireProblem.FilterMode.EXACT;
+        }
+      }
+      if (args.length > 2 && args[2].startsWith("particle")) {
+        prob.filterMode = SchapireProblem.FilterMode.PARTICLE;
+        if (args[2].indexOf(':') >= 0)
+          prob.particleCount = Integer.parseInt(args[2].substring(args[2].indexOf(':') + 1));
+      }
+      if (args.length > 2 && args[2].startsWith("beam")) {
+        prob.filterMode = SchapireProblem.FilterMode.BEAM;
+        if (args[2].indexOf(':') >= 0)
+          prob.beamWidth = Integer.parseInt(args[2].substring(args[2].indexOf(':') + 1));
+      }
+      if (args.length > 4 && args[4].startsWith("record:"))
+        TraceFile.write(Paths.get(args[4].substring(7)), m, Maze.colorSet, prob.evidence, prob.randomPath);
+
+      if (prob.filterMode == SchapireProblem.FilterMode.EXACT
+          || prob.filterMode == SchapireProblem.FilterMode.STENCIL) {
+        prob.solveAll();
+      } else {
+        prob.solveFiltering();
+        prob.solveSmoothing();
+        prob.solveBestPath();
+      }
+    }
   }
 
 }
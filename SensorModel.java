@@ -0,0 +1,114 @@
+package probabalistic_reasoning;
+
+/**
+ * Color sensor model for the maze.
+ *
+ * Every sensor matrix in this problem is diagonal, so instead of one n x n
+ * matrix per color we keep a single table with one likelihood vector per
+ * color: likelihood[c * stateCount + s] = P(reading colors[c] | in state s).
+ * Applying the evidence is then an element-wise multiply.
+ */
+public class SensorModel {
+  public static final double DEFAULT_ACCURACY = 0.88;
+
+  public final int stateCount;
+  public final char[] colors;
+  public final double accuracy;
+
+  private final double wrong; // P(reading a given wrong color)
+
+  // One row of stateCount likelihoods per color
+  final double[] likelihood;
+  // log(likelihood), for max-product decoding in log space
+  final double[] logLikelihood;
+
+  public SensorModel(Maze m) {
+    this(m, Maze.colorSet, DEFAULT_ACCURACY);
+  }
+
+  /**
+   * The sensor reads the true color with probability accuracy, and each of
+   * the other colors with an equal share of the remaining probability.
+   */
+  public SensorModel(Maze m, char[] colors, double accuracy) {
+    if (colors.length < 2)
+      throw new IllegalArgumentException("Need at least two colors, got " + colors.length);
+    if (accuracy < 0.0 || accuracy > 1.0)
+      throw new IllegalArgumentException("Sensor accuracy must be in [0, 1], got " + accuracy);
+
+    this.stateCount = m.stateCount;
+    this.colors = colors.clone();
+    this.accuracy = accuracy;
+    wrong = (1.0 - accuracy) / (colors.length - 1);
+
+    likelihood = new double[colors.length * stateCount];
+    logLikelihood = new double[colors.length * stateCount];
+    for (int state = 0; state < stateCount; state++)
+      fill(m, state);
+  }
+
+  // Sets the state's likelihoods from its cell's color in the maze as it is
+  // now. The state of a wall cell (in an editable maze) never reads anything.
+  void fill(Maze m, int state) {
+    boolean wall = m.isWall(m.stateX(state), m.stateY(state));
+    char actual = m.stateColor(state);
+
+    for (int c = 0; c < colors.length; c++) {
+      int i = c * stateCount + state;
+      if (wall)
+        likelihood[i] = 0.0;
+      else if (actual == colors[c]) // This state is the given color
+        likelihood[i] = accuracy;
+      else // The state is not the given color
+        likelihood[i] = wrong;
+      logLikelihood[i] = Math.log(likelihood[i]);
+    }
+  }
+
+  // Wraps tables that were already built (see ModelCache)
+  SensorModel(char[] colors, double accuracy, double[] likelihood, double[] logLikelihood) {
+    this.stateCount = likelihood.length / colors.length;
+    this.colors = colors;
+    this.accuracy = accuracy;
+    this.wrong = (1.0 - accuracy) / (colors.length - 1);
+    this.likelihood = likelihood;
+    this.logLikelihood = logLikelihood;
+  }
+
+  public int colorCount() {
+    return colors.length;
+  }
+
+  /**
+   * Index of the given color reading in the likelihood table
+   */
+  public int colorIndex(char color) {
+    for (int c = 0; c < colors.length; c++)
+      if (colors[c] == color)
+        return c;
+    throw new IllegalArgumentException("Unknown color reading '" + color + "'");
+  }
+
+  /**
+   * P(reading the given color | in the given state)
+   */
+  public double likelihood(char color, int state) {
+    return likelihood[colorIndex(color) * stateCount + state];
+  }
+
+  /**
+   * Copies the likelihood vector for the given color into result
+   */
+  public void likelihoods(char color, double[] result) {
+    System.arraycopy(likelihood, colorIndex(color) * stateCount, result, 0, stateCount);
+  }
+
+  /**
+   * message = SensorModel(color) * message, in place
+   */
+  public void observe(char color, double[] message) {
+    int offset = colorIndex(color) * stateCount;
+    for (int state = 0; state < stateCount; state++)
+      message[state] *= likelihood[offset + state];
+  }
+}
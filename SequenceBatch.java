@@ -0,0 +1,303 @@
+package probabalistic_reasoning;
+
+import java.util.Arrays;
+
+/**
+ * Filters and smooths K evidence sequences on the same maze together.
+ *
+ * The K messages are kept as one n x K block, block[s * K + k], so each
+ * neighbor-table entry and move probability is loaded once per step and
+ * applied to K contiguous columns instead of being streamed through cache
+ * K times by K separate runs.
+ *
+ * Each step is one fused sweep over the block: predict, apply the
+ * evidence and sum each column. Columns are not rescaled in a pass of their
+ * own; each column's normalizer is carried into the next step's sweep
+ * instead, so a step reads the block once and writes it once.
+ *
+ * Sequences may have different lengths. Columns are ordered longest first,
+ * so at any step the sequences still running are a prefix of the columns
+ * and the others are masked off by only sweeping that prefix.
+ */
+public class SequenceBatch {
+  /**
+   * Receives one sequence's distribution at one step. The distribution
+   * array is reused between calls.
+   */
+  public interface Listener {
+    void distribution(int sequence, int step, double[] distribution);
+  }
+
+  public final TransitionModel transitions;
+  public final SensorModel sensors;
+  public final double[] prior;
+  public final int stateCount;
+  public final int sequences;  // K
+
+  private final char[][] evidence; // In column order
+  private final int[] order;       // order[column] = index of that column's sequence
+  private final int steps;         // Length of the longest sequence
+
+  // Per-column scratch for one step
+  private final int[] colorOffset;
+  private final double[] sums;
+
+  public SequenceBatch(MazeModel model, char[][] evidence) {
+    this(model.transitions, model.sensors, model.prior, evidence);
+  }
+
+  public SequenceBatch(TransitionModel transitions, SensorModel sensors, double[] prior, char[][] evidence) {
+    this.transitions = transitions;
+    this.sensors = sensors;
+    this.prior = prior;
+    this.stateCount = transitions.stateCount;
+    this.sequences = evidence.length;
+
+    Integer[] byLength = new Integer[sequences];
+    for (int k = 0; k < sequences; k++)
+      byLength[k] = k;
+    Arrays.sort(byLength, (a, b) -> Integer.compare(evidence[b].length, evidence[a].length));
+
+    this.order = new int[sequences];
+    this.evidence = new char[sequences][];
+    for (int column = 0; column < sequences; column++) {
+      order[column] = byLength[column];
+      this.evidence[column] = evidence[byLength[column]];
+    }
+    steps = (sequences == 0) ? 0 : this.evidence[0].length;
+
+    colorOffset = new int[sequences];
+    sums = new double[sequences];
+  }
+
+  /**
+   * Filters every sequence, reporting each filtered distribution to the
+   * listener if there is one, and returns each sequence's log-likelihood,
+   * log P(evidence), indexed like the evidence array
+   */
+  public double[] filter(Listener listener) {
+    int K = sequences;
+    double[] block = new double[stateCount * K];
+    double[] scratch = new double[stateCount * K];
+    double[] scale = new double[K]; // The filtered messages are block * scale
+    double[] distribution = (listener != null) ? new double[stateCount] : null;
+    double[] logLikelihood = new double[K];
+    double[] swap;
+
+    start(block, scale);
+    for (int step = 0; step < steps; step++) {
+      int active = forward(block, scale, step, scratch);
+      for (int column = 0; column < active; column++)
+        logLikelihood[order[column]] += Math.log(sums[column]); // P(e_t | e_1:t-1)
+
+      swap = block;
+      block = scratch;
+      scratch = swap;
+
+      if (listener != null)
+        for (int column = 0; column < active; column++) {
+          for (int state = 0; state < stateCount; state++)
+            distribution[state] = block[state * K + column] * scale[column];
+          listener.distribution(order[column], step, distribution);
+        }
+    }
+    return logLikelihood;
+  }
+
+  /**
+   * Smooths every sequence, checkpointing the forward block every sqrt(T)
+   * steps as Smoother does
+   */
+  public void smooth(Listener listener) {
+    smooth((int) Math.ceil(Math.sqrt(steps)), listener);
+  }
+
+  /**
+   * Forward-backward over every sequence at once. Each sequence's smoothed
+   * distributions are reported from its last step back to its first, with
+   * the sequences interleaved step by step.
+   */
+  public void smooth(int interval, Listener listener) {
+    int K = sequences;
+    if (steps == 0)
+      return;
+    if (interval < 1)
+      throw new IllegalArgumentException("Checkpoint interval must be positive, got " + interval);
+
+    int segments = (steps + interval - 1) / interval;
+    double[][] checkpoints = new double[segments][stateCount * K]; // Normalized block before each segment
+    double[][] fVals = new double[Math.min(interval, steps)][stateCount * K];
+    double[] forward = new double[stateCount * K];
+    double[] backward = new double[stateCount * K];
+    double[] scratch = new double[stateCount * K];
+    double[] forwardScale = new double[K];
+    double[] backwardScale = new double[K];
+    double[] distribution = new double[stateCount];
+    double[] swap;
+
+    // Forward pass, keeping only the checkpoints (the last segment is
+    // computed by the backward pass)
+    int lastStart = (segments - 1) * interval;
+    start(forward, forwardScale);
+    for (int step = 0; step < lastStart; step++) {
+      if (step % interval == 0)
+        checkpoint(forward, forwardScale, checkpoints[step / interval]);
+      forward(forward, forwardScale, step, scratch);
+      swap = forward;
+      forward = scratch;
+      scratch = swap;
+    }
+    checkpoint(forward, forwardScale, checkpoints[segments - 1]);
+
+    // Backward pass, one segment at a time. A column joins when the pass
+    // reaches its sequence's last step, starting from b = 1.
+    int joined = 0;
+    for (int segment = segments - 1; segment >= 0; segment--) {
+      int first = segment * interval;
+      int end = Math.min(first + interval, steps);
+
+      // Recompute this segment's forward messages from its checkpoint. Only
+      // their shape is used, so they are left unnormalized.
+      double[] last = checkpoints[segment];
+      Arrays.fill(forwardScale, 1.0);
+      for (int step = first; step < end; step++) {
+        forward(last, forwardScale, step, fVals[step - first]);
+        last = fVals[step - first];
+      }
+
+      for (int step = end - 1; step >= first; step--) {
+        int active = active(step);
+        for (; joined < active; joined++) {
+          for (int state = 0; state < stateCount; state++)
+            backward[state * K + joined] = 1.0;
+          backwardScale[joined] = 1.0;
+        }
+
+        double[] f = fVals[step - first];
+        for (int column = 0; column < active; column++) {
+          for (int state = 0; state < stateCount; state++)
+            distribution[state] = f[state * K + column] * backward[state * K + column];
+          Messages.normalize(distribution);
+          listener.distribution(order[column], step, distribution);
+        }
+
+        // b_k:t = TransitionModel * SensorModel_k * b_k+1:t
+        backward(backward, backwardScale, step, scratch);
+        swap = backward;
+        backward = scratch;
+        scratch = swap;
+      }
+    }
+  }
+
+  /**
+   * Index into the evidence array of the sequence in the given column
+   */
+  public int sequence(int column) {
+    return order[column];
+  }
+
+  // Number of columns (a prefix) whose sequence has a reading at this step
+  private int active(int step) {
+    int active = sequences;
+    while (active > 0 && evidence[active - 1].length <= step)
+      active--;
+    return active;
+  }
+
+  private void start(double[] block, double[] scale) {
+    int K = sequences;
+    for (int state = 0; state < stateCount; state++)
+      Arrays.fill(block, state * K, state * K + K, prior[state]);
+    Arrays.fill(scale, 1.0);
+  }
+
+  private void checkpoint(double[] block, double[] scale, double[] saved) {
+    int K = sequences;
+    for (int state = 0; state < stateCount; state++)
+      for (int k = 0; k < K; k++)
+        saved[state * K + k] = block[state * K + k] * scale[k];
+  }
+
+  /**
+   * result = SensorModel * TransitionTranspose * (block * scale), over the
+   * columns still running at this step, in one sweep. Leaves each column's
+   * sum in sums and replaces scale with 1 / sums, and returns the number of
+   * columns swept.
+   */
+  private int forward(double[] block, double[] scale, int step, double[] result) {
+    int K = sequences;
+    int active = active(step);
+    colorOffsets(step, active);
+    Arrays.fill(sums, 0, active, 0.0);
+
+    for (int state = 0; state < stateCount; state++) {
+      int base = state * K;
+      Arrays.fill(result, base, base + active, 0.0);
+      for (int a = 0; a < TransitionModel.MAX_MOVES; a++) {
+        int from = transitions.prev[state * TransitionModel.MAX_MOVES + a];
+        if (from < 0)
+          continue;
+        double p = transitions.moveProb[from];
+        int src = from * K;
+        for (int k = 0; k < active; k++)
+          result[base + k] += block[src + k] * p;
+      }
+      for (int k = 0; k < active; k++) {
+        double v = result[base + k] * scale[k] * sensors.likelihood[colorOffset[k] + state];
+        result[base + k] = v;
+        sums[k] += v;
+      }
+    }
+
+    rescale(scale, active);
+    return active;
+  }
+
+  /**
+   * result = TransitionModel * SensorModel * (block * scale), over the
+   * columns still running at this step, in one sweep. Replaces scale with
+   * 1 / each column's sum, as forward() does.
+   */
+  private void backward(double[] block, double[] scale, int step, double[] result) {
+    int K = sequences;
+    int active = active(step);
+    colorOffsets(step, active);
+    Arrays.fill(sums, 0, active, 0.0);
+
+    for (int state = 0; state < stateCount; state++) {
+      int base = state * K;
+      Arrays.fill(result, base, base + active, 0.0);
+      for (int a = 0; a < TransitionModel.MAX_MOVES; a++) {
+        int to = transitions.next[state * TransitionModel.MAX_MOVES + a];
+        if (to < 0)
+          continue;
+        int src = to * K;
+        for (int k = 0; k < active; k++)
+          result[base + k] += block[src + k] * sensors.likelihood[colorOffset[k] + to];
+      }
+      double p = transitions.moveProb[state];
+      for (int k = 0; k < active; k++) {
+        double v = result[base + k] * p * scale[k];
+        result[base + k] = v;
+        sums[k] += v;
+      }
+    }
+
+    rescale(scale, active);
+  }
+
+  // Where each running column's reading at this step starts in the likelihood table
+  private void colorOffsets(int step, int active) {
+    for (int column = 0; column < active; column++)
+      colorOffset[column] = sensors.colorIndex(evidence[column][step]) * stateCount;
+  }
+
+  private void rescale(double[] scale, int active) {
+    for (int k = 0; k < active; k++) {
+      if (sums[k] == 0.0)
+        throw new IllegalStateException("Evidence is impossible under the model");
+      scale[k] = 1.0 / sums[k];
+    }
+  }
+}
@@ -0,0 +1,119 @@
+package probabalistic_reasoning;
+
+import java.util.Arrays;
+
+/**
+ * Forward-backward smoothing over a whole evidence sequence.
+ *
+ * The plain mode stores every forward message (T * n doubles). The
+ * checkpointed mode only stores the forward message at the start of every
+ * segment of interval steps, and recomputes a segment's forward messages
+ * just before the backward pass walks through it. With interval = sqrt(T)
+ * that is O(sqrt(T) * n) memory for one extra forward pass of work.
+ */
+public class Smoother {
+  /**
+   * Receives smoothed distributions, from the last step back to the first.
+   * The distribution array is reused between calls.
+   */
+  public interface Listener {
+    void smoothed(int step, double[] distribution);
+  }
+
+  public final TransitionModel transitions;
+  public final SensorModel sensors;
+  public final double[] prior;
+  public final int stateCount;
+
+  public Smoother(TransitionModel transitions, SensorModel sensors, double[] prior) {
+    this.transitions = transitions;
+    this.sensors = sensors;
+    this.prior = prior;
+    this.stateCount = transitions.stateCount;
+  }
+
+  /**
+   * Stores every forward message, then runs the backward pass
+   */
+  public void smooth(char[] evidence, Listener listener) {
+    smoothCheckpointed(evidence, evidence.length, listener);
+  }
+
+  /**
+   * Checkpoints every sqrt(T) steps
+   */
+  public void smoothCheckpointed(char[] evidence, Listener listener) {
+    smoothCheckpointed(evidence, (int) Math.ceil(Math.sqrt(evidence.length)), listener);
+  }
+
+  /**
+   * Checkpoints the forward message every interval steps and recomputes the
+   * forward messages of one segment at a time during the backward pass
+   */
+  public void smoothCheckpointed(char[] evidence, int interval, Listener listener) {
+    int length = evidence.length;
+    if (length == 0)
+      return;
+    if (interval < 1)
+      throw new IllegalArgumentException("Checkpoint interval must be positive, got " + interval);
+
+    int segments = (length + interval - 1) / interval;
+    double[][] checkpoints = new double[segments][stateCount]; // Message before each segment
+    double[][] fVals = new double[Math.min(interval, length)][stateCount];
+    double[] forwardMessage = new double[stateCount];
+    double[] backwardMessage = new double[stateCount];
+    double[] scratch = new double[stateCount];
+    double[] distribution = new double[stateCount];
+
+    // Forward part of forward-backwards, keeping only the checkpoints
+    // (the last segment is computed by the backward pass, so stop at its start)
+    int lastStart = (segments - 1) * interval;
+    System.arraycopy(prior, 0, forwardMessage, 0, stateCount);
+    for (int step = 0; step < lastStart; step++) {
+      if (step % interval == 0)
+        System.arraycopy(forwardMessage, 0, checkpoints[step / interval], 0, stateCount);
+      forward(forwardMessage, evidence[step], scratch);
+      System.arraycopy(scratch, 0, forwardMessage, 0, stateCount);
+    }
+    System.arraycopy(forwardMessage, 0, checkpoints[segments - 1], 0, stateCount);
+
+    // Backwards part of forward-backwards, one segment at a time
+    Arrays.fill(backwardMessage, 1.0);
+    for (int segment = segments - 1; segment >= 0; segment--) {
+      int first = segment * interval;
+      int end = Math.min(first + interval, length);
+
+      // Recompute this segment's forward messages from its checkpoint
+      double[] last = checkpoints[segment];
+      for (int step = first; step < end; step++) {
+        forward(last, evidence[step], fVals[step - first]);
+        last = fVals[step - first];
+      }
+
+      for (int step = end - 1; step >= first; step--) {
+        long start = Instrumentation.on ? Instrumentation.begin() : 0L;
+        double[] f = fVals[step - first];
+        for (int state = 0; state < stateCount; state++)
+          distribution[state] = f[state] * backwardMessage[state];
+        double normalizer = Messages.normalize(distribution);
+
+        // b_k:t = TransitionModel * SensorModel_k * b_k+1:t
+        System.arraycopy(backwardMessage, 0, scratch, 0, stateCount);
+        sensors.observe(evidence[step], scratch);
+        transitions.propagateBack(scratch, backwardMessage);
+        Messages.normalize(backwardMessage); // Only the shape matters; keeps it in range
+
+        if (start != 0L)
+          Instrumentation.step(Metrics.Phase.SMOOTH, start, step, distribution, normalizer);
+        listener.smoothed(step, distribution);
+      }
+    }
+  }
+
+  // result = alpha * SensorModel * TransitionTranspose * message
+  private void forward(double[] message, char color, double[] result) {
+    transitions.predict(message, result);
+    sensors.observe(color, result);
+    Messages.normalize(result);
+  }
+}
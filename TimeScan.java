@@ -0,0 +1,319 @@
+package probabalistic_reasoning;
+
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+import java.util.function.IntConsumer;
+
+/**
+ * Parallel-in-time filtering and Viterbi decoding for long traces.
+ *
+ * Each step is a linear operator on messages, in the (+, *) semiring for
+ * filtering and the (max, +) semiring for Viterbi, so the steps of a chunk of
+ * the trace compose into one n x n operator. The trace is split into chunks
+ * and scanned in three phases:
+ *
+ *   1. in parallel, build each chunk's operator by pushing all n unit
+ *      messages through its steps;
+ *   2. in order, apply the chunk operators to get the message entering each
+ *      chunk (P chunks cost P * n^2);
+ *   3. in parallel, rerun each chunk from its entry message (for Viterbi,
+ *      from the state the best path enters it in) to fill in every step.
+ *
+ * Phase 1 does n times the work of the sequential recursion, so this only
+ * pays off when there are more cores than states: small mazes, very long
+ * traces. Results match OnlineFilter and ViterbiDecoder up to rounding; on
+ * exact ties the Viterbi path may differ but has the same probability.
+ *
+ * The chunk operators are all in memory at once, chunks * n^2 doubles, so
+ * scans needing more than MAX_OPERATOR_ENTRIES of them are rejected (see
+ * fits()).
+ */
+public class TimeScan implements AutoCloseable {
+  public final TransitionModel transitions;
+  public final SensorModel sensors;
+  public final double[] prior;
+  public final int stateCount;
+  public final int threads;
+
+  // Most operator entries a scan may hold at once (1 GB of doubles)
+  public static final long MAX_OPERATOR_ENTRIES = 1L << 27;
+
+  private final ForkJoinPool pool;
+  private double bestProbability;
+
+  public TimeScan(MazeModel model, int threads) {
+    this.transitions = model.transitions;
+    this.sensors = model.sensors;
+    this.prior = model.prior;
+    this.stateCount = model.stateCount;
+    this.threads = threads;
+    pool = new ForkJoinPool(threads);
+  }
+
+  /**
+   * Whether a scan over a maze of stateCount states in the given number of
+   * chunks keeps its operators under MAX_OPERATOR_ENTRIES
+   */
+  public static boolean fits(int stateCount, int chunks) {
+    return (long) chunks * stateCount * stateCount <= MAX_OPERATOR_ENTRIES;
+  }
+
+  /**
+   * Filtered distributions for every step, with 4 chunks per thread
+   */
+  public double[][] filter(char[] evidence) {
+    return filter(evidence, 4 * threads);
+  }
+
+  public double[][] filter(char[] evidence, int chunks) {
+    int n = stateCount;
+    int length = evidence.length;
+    double[][] filtered = new double[length][n];
+    if (length == 0)
+      return filtered;
+
+    int[] start = split(0, length, chunks);
+    int count = start.length - 1;
+    checkOperators(count - 1);
+
+    // 1. Operator of every chunk but the last: row i is the (scaled)
+    //    message at the chunk's end if it was entered in state i
+    double[][] operators = new double[count][];
+    parallel(count - 1, c -> {
+      double[] rows = new double[(int) ((long) n * n)];
+      double[] row = new double[n];
+      double[] scratch = new double[n];
+      for (int i = 0; i < n; i++)
+        rows[i * n + i] = 1.0;
+
+      for (int step = start[c]; step < start[c + 1]; step++) {
+        double sum = 0.0;
+        for (int i = 0; i < n; i++) {
+          System.arraycopy(rows, i * n, row, 0, n);
+          transitions.predict(row, scratch);
+          sensors.observe(evidence[step], scratch);
+          for (int j = 0; j < n; j++)
+            sum += scratch[j];
+          System.arraycopy(scratch, 0, rows, i * n, n);
+        }
+        // One scale for all rows keeps their relative weights
+        double scale = 1.0 / sum;
+        for (int k = 0; k < rows.length; k++)
+          rows[k] *= scale;
+      }
+      operators[c] = rows;
+    });
+
+    // 2. The message entering each chunk
+    double[][] entry = new double[count][];
+    entry[0] = prior;
+    for (int c = 1; c < count; c++) {
+      double[] rows = operators[c - 1];
+      double[] last = entry[c - 1];
+      double[] message = new double[n];
+      for (int i = 0; i < n; i++)
+        if (last[i] != 0.0)
+          for (int j = 0; j < n; j++)
+            message[j] += last[i] * rows[i * n + j];
+      Messages.normalize(message);
+      entry[c] = message;
+    }
+
+    // 3. Every step of every chunk, from its entry message
+    parallel(count, c -> {
+      double[] last = entry[c];
+      for (int step = start[c]; step < start[c + 1]; step++) {
+        transitions.predict(last, filtered[step]);
+        sensors.observe(evidence[step], filtered[step]);
+        Messages.normalize(filtered[step]);
+        last = filtered[step];
+      }
+    });
+    return filtered;
+  }
+
+  /**
+   * The most likely path, with 4 chunks per thread
+   */
+  public int[] decode(char[] evidence) {
+    return decode(evidence, 4 * threads);
+  }
+
+  public int[] decode(char[] evidence, int chunks) {
+    int n = stateCount;
+    int length = evidence.length;
+    int[] path = new int[length];
+    if (length == 0)
+      throw new IllegalArgumentException("Need at least one reading");
+
+    // The first reading is taken after one move from the prior, as in
+    // ViterbiDecoder.start()
+    double[] score = new double[n];
+    double[] scratch = new double[n];
+    transitions.predict(prior, scratch);
+    int offset = sensors.colorIndex(evidence[0]) * n;
+    for (int state = 0; state < n; state++)
+      score[state] = Math.log(scratch[state]) + sensors.logLikelihood[offset + state];
+
+    if (length == 1) {
+      path[0] = Messages.argmax(score);
+      bestProbability = probability(score);
+      return path;
+    }
+
+    // Chunks of steps 1 .. length - 1; chunk c is entered from step start[c] - 1
+    int[] start = split(1, length, chunks);
+    int count = start.length - 1;
+    checkOperators(count);
+
+    // 1. Operator of every chunk: rows[i * n + j] = log score of the best
+    //    path through the chunk from state i to state j
+    double[][] operators = new double[count][];
+    parallel(count, c -> {
+      double[] rows = new double[(int) ((long) n * n)];
+      double[] next = new double[n];
+      Arrays.fill(rows, Double.NEGATIVE_INFINITY);
+      for (int i = 0; i < n; i++)
+        rows[i * n + i] = 0.0;
+
+      for (int step = start[c]; step < start[c + 1]; step++) {
+        int color = sensors.colorIndex(evidence[step]) * n;
+        for (int i = 0; i < n; i++) {
+          maxStep(rows, i * n, next, null, color);
+          System.arraycopy(next, 0, rows, i * n, n);
+        }
+      }
+      operators[c] = rows;
+    });
+
+    // 2. Best scores leaving each chunk, and the state each best path
+    //    entered it in
+    int[][] entered = new int[count][n];
+    for (int c = 0; c < count; c++) {
+      double[] rows = operators[c];
+      double[] next = new double[n];
+      for (int j = 0; j < n; j++) {
+        double best = Double.NEGATIVE_INFINITY;
+        int from = -1;
+        for (int i = 0; i < n; i++) {
+          double v = score[i] + rows[i * n + j];
+          if (v > best) {
+            best = v;
+            from = i;
+          }
+        }
+        next[j] = best;
+        entered[c][j] = from;
+      }
+      score = rescale(next);
+    }
+
+    // The best path's state at each chunk boundary, from the end back
+    int[] boundary = new int[count + 1]; // boundary[c] = state at step start[c] - 1
+    boundary[count] = Messages.argmax(score);
+    for (int c = count - 1; c >= 0; c--)
+      boundary[c] = entered[c][boundary[c + 1]];
+    bestProbability = probability(score);
+    path[0] = boundary[0];
+
+    // 3. The best path through every chunk between its boundary states
+    parallel(count, c -> {
+      int first = start[c], end = start[c + 1];
+      int[][] backchains = new int[end - first][n];
+      double[] current = new double[n];
+      double[] next = new double[n];
+      Arrays.fill(current, Double.NEGATIVE_INFINITY);
+      current[boundary[c]] = 0.0;
+
+      for (int step = first; step < end; step++) {
+        maxStep(current, 0, next, backchains[step - first], sensors.colorIndex(evidence[step]) * n);
+        double[] swap = current;
+        current = next;
+        next = swap;
+      }
+
+      int state = boundary[c + 1];
+      for (int step = end - 1; step >= first; step--) {
+        path[step] = state;
+        state = backchains[step - first][state];
+      }
+    });
+    return path;
+  }
+
+  /**
+   * Probability of the path from the last decode(), as
+   * ViterbiDecoder.bestProbability() reports it
+   */
+  public double bestProbability() {
+    return bestProbability;
+  }
+
+  public void close() {
+    pool.shutdown();
+  }
+
+  // next[j] = max over predecessors i of scores[base + i] + log P(move), +
+  // log SensorModel, with the best predecessor in backchain if given (first
+  // on ties, in the same order as ViterbiDecoder)
+  private void maxStep(double[] scores, int base, double[] next, int[] backchain, int colorOffset) {
+    for (int state = 0; state < stateCount; state++) {
+      double maxVal = Double.NEGATIVE_INFINITY;
+      int maxState = -1;
+      for (int a = 0; a < TransitionModel.MAX_MOVES; a++) {
+        int from = transitions.prev[state * TransitionModel.MAX_MOVES + a];
+        if (from < 0)
+          continue;
+        double v = scores[base + from] + transitions.logMoveProb[from];
+        if (v > maxVal) {
+          maxVal = v;
+          maxState = from;
+        }
+      }
+      next[state] = maxVal + sensors.logLikelihood[colorOffset + state];
+      if (backchain != null)
+        backchain[state] = maxState;
+    }
+  }
+
+  // Shifts scores so the best is 0
+  private static double[] rescale(double[] scores) {
+    double max = Double.NEGATIVE_INFINITY;
+    for (double s : scores)
+      max = Math.max(max, s);
+    if (max == Double.NEGATIVE_INFINITY)
+      throw new IllegalStateException("Evidence is impossible under the model");
+    for (int i = 0; i < scores.length; i++)
+      scores[i] -= max;
+    return scores;
+  }
+
+  private static double probability(double[] scores) {
+    rescale(scores);
+    double sum = 0.0;
+    for (double s : scores)
+      sum += Math.exp(s);
+    return 1.0 / sum;
+  }
+
+  private void checkOperators(int count) {
+    if (!fits(stateCount, count))
+      throw new IllegalArgumentException("A scan over " + stateCount + " states in " + count
+          + " chunks needs " + count + " x " + stateCount + "^2 operator entries, more than "
+          + MAX_OPERATOR_ENTRIES + "; use the sequential filter and decoder");
+  }
+
+  // Chunk boundaries splitting [from, to) into at most chunks pieces
+  private static int[] split(int from, int to, int chunks) {
+    int count = Math.max(1, Math.min(chunks, to - from));
+    int[] start = new int[count + 1];
+    for (int c = 0; c <= count; c++)
+      start[c] = from + (int) ((long) (to - from) * c / count);
+    return start;
+  }
+
+  private void parallel(int count, IntConsumer body) {
+    if (count > 0)
+      pool.invoke(new ChunkTask(body, 0, count));
+  }
+}
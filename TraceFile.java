@@ -0,0 +1,367 @@
+package probabalistic_reasoning;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+/**
+ * Recorded evidence traces, so long robot logs can be replayed through the
+ * solvers and generated traces can be kept to rerun an experiment exactly.
+ *
+ * A trace file is (little-endian):
+ *
+ *   int magic, int version, int flags, int colorCount, long length,
+ *   int width, int height, int stateCount, colorCount chars, padded to 8 bytes
+ *
+ * then the readings, as color indices into the header's colors: 2 bits
+ * each, four to a byte starting from the low bits, if flags has PACKED,
+ * otherwise one byte each; padded to 8 bytes. If flags has TRUTH, an int
+ * per reading follows with the state the robot was really in.
+ *
+ * Both ends go through memory-mapped windows of at most MAP_CHUNK bytes, so
+ * neither the reader nor the writer holds the trace in memory.
+ */
+public final class TraceFile {
+  public static final int MAGIC = 0x4d5a5452; // "MZTR"
+  public static final int VERSION = 1;
+
+  // Flags
+  public static final int PACKED = 1, TRUTH = 2;
+
+  // Largest piece of a trace mapped at once
+  private static final int MAP_CHUNK = 1 << 30;
+  // Header up to the color chars
+  private static final int FIXED_HEADER = 16 + 8 + 12;
+
+  private TraceFile() {}
+
+  /**
+   * Writes a whole trace, packed if there are at most 4 colors. states are
+   * the true states (null to leave them out).
+   */
+  public static void write(Path file, Maze maze, char[] colors, char[] evidence, int[] states) throws IOException {
+    if (states != null && states.length != evidence.length)
+      throw new IllegalArgumentException(states.length + " states for " + evidence.length + " readings");
+
+    try (Writer out = new Writer(file, maze, colors, evidence.length, colors.length <= 4, states != null)) {
+      for (int step = 0; step < evidence.length; step++)
+        out.append(evidence[step], (states != null) ? states[step] : -1);
+    }
+  }
+
+  /**
+   * Streams readings out of a trace file, in order or by position
+   */
+  public static final class Reader implements AutoCloseable {
+    public final long length;
+    public final int width, height, stateCount;
+    public final char[] colors;
+    public final boolean packed, hasTruth;
+
+    private final Path file;
+    private final FileChannel channel;
+    private final long readingStart, truthStart;
+    private final Window readings, truth;
+    private long position;
+    private int state = -1; // True state of the reading next() last returned
+
+    public Reader(Path file) throws IOException {
+      this.file = file;
+      channel = FileChannel.open(file, StandardOpenOption.READ);
+      try {
+        ByteBuffer header = ByteBuffer.allocate(FIXED_HEADER).order(ByteOrder.LITTLE_ENDIAN);
+        if (channel.size() < FIXED_HEADER)
+          throw new IOException(file + " is not a trace file");
+        channel.read(header, 0);
+        header.flip();
+
+        if (header.getInt() != MAGIC)
+          throw new IOException(file + " is not a trace file");
+        int version = header.getInt();
+        if (version != VERSION)
+          throw new IOException(file + " is trace format version " + version + ", expected " + VERSION);
+        int flags = header.getInt();
+        int colorCount = header.getInt();
+        length = header.getLong();
+        width = header.getInt();
+        height = header.getInt();
+        stateCount = header.getInt();
+        packed = (flags & PACKED) != 0;
+        hasTruth = (flags & TRUTH) != 0;
+        if (packed && colorCount > 4)
+          throw new IOException(file + " packs " + colorCount + " colors into 2 bits");
+
+        ByteBuffer colorBuf = ByteBuffer.allocate(2 * colorCount).order(ByteOrder.LITTLE_ENDIAN);
+        channel.read(colorBuf, FIXED_HEADER);
+        colorBuf.flip();
+        colors = new char[colorCount];
+        for (int c = 0; c < colorCount; c++)
+          colors[c] = colorBuf.getChar();
+
+        readingStart = headerSize(colorCount);
+        truthStart = readingStart + align(readingBytes(length, packed));
+        long expected = truthStart + (hasTruth ? 4 * length : 0);
+        if (channel.size() != expected)
+          throw new IOException(file + " should be " + expected + " bytes, but is " + channel.size());
+
+        readings = new Window(channel, FileChannel.MapMode.READ_ONLY, readingStart, readingBytes(length, packed));
+        truth = hasTruth ? new Window(channel, FileChannel.MapMode.READ_ONLY, truthStart, 4 * length) : null;
+      } catch (IOException | RuntimeException e) {
+        channel.close();
+        throw e;
+      }
+    }
+
+    /**
+     * Throws if the trace was recorded on a maze of a different shape
+     */
+    public void check(Maze maze) {
+      if (maze.width != width || maze.height != height || maze.stateCount != stateCount)
+        throw new IllegalArgumentException("Trace was recorded on a " + width + " x " + height + " maze with "
+            + stateCount + " states, not " + maze.width + " x " + maze.height + " with " + maze.stateCount);
+    }
+
+    /**
+     * Throws if the trace was recorded on a maze of a different shape, or
+     * with a different color table than the model's sensors
+     */
+    public void check(MazeModel model) {
+      check(model.maze);
+      if (!Arrays.equals(colors, model.sensors.colors))
+        throw new IllegalArgumentException("Trace " + file + " was recorded with colors "
+            + new String(colors) + ", not the model's " + new String(model.sensors.colors));
+    }
+
+    public boolean hasNext() {
+      return position < length;
+    }
+
+    /**
+     * The next reading; its true state is then available from state()
+     */
+    public char next() {
+      if (position >= length)
+        throw new IllegalStateException("Read past the end of the trace");
+      char reading = reading(position);
+      state = hasTruth ? state(position) : -1;
+      position++;
+      return reading;
+    }
+
+    /**
+     * True state of the reading next() last returned, or -1 if the trace has
+     * no ground truth
+     */
+    public int state() {
+      return state;
+    }
+
+    /**
+     * Index of the reading next() will return
+     */
+    public long position() {
+      return position;
+    }
+
+    public void seek(long position) {
+      if (position < 0 || position > length)
+        throw new IndexOutOfBoundsException("Position " + position + " in a trace of " + length);
+      this.position = position;
+      state = -1;
+    }
+
+    /**
+     * The reading at the given step
+     */
+    public char reading(long step) {
+      if (step < 0 || step >= length)
+        throw new IndexOutOfBoundsException("Step " + step + " in a trace of " + length);
+      int index;
+      if (packed)
+        index = (readings.get(step >>> 2) >>> (2 * (int) (step & 3))) & 3;
+      else
+        index = readings.get(step) & 0xff;
+      if (index >= colors.length)
+        throw new IllegalStateException("Trace " + file + " is corrupt: reading " + step + " is color "
+            + index + " of " + colors.length);
+      return colors[index];
+    }
+
+    /**
+     * True state at the given step, or -1 if the trace has no ground truth
+     */
+    public int state(long step) {
+      if (step < 0 || step >= length)
+        throw new IndexOutOfBoundsException("Step " + step + " in a trace of " + length);
+      return hasTruth ? truth.getInt(4 * step) : -1;
+    }
+
+    public void close() throws IOException {
+      channel.close();
+    }
+  }
+
+  /**
+   * Writes a trace of a known length one reading at a time
+   */
+  public static final class Writer implements AutoCloseable {
+    public final long length;
+    public final boolean packed, hasTruth;
+
+    private final char[] colors;
+    private final FileChannel channel;
+    private final Window readings, truth;
+    private long position;
+
+    /**
+     * packed stores 2 bits per reading (at most 4 colors); truth stores the
+     * true state alongside each reading
+     */
+    public Writer(Path file, Maze maze, char[] colors, long length, boolean packed, boolean truth)
+        throws IOException {
+      if (packed && colors.length > 4)
+        throw new IllegalArgumentException("Can't pack " + colors.length + " colors into 2 bits");
+      if (!packed && colors.length > 256)
+        throw new IllegalArgumentException("Can't store " + colors.length + " colors in a byte");
+
+      this.length = length;
+      this.packed = packed;
+      this.hasTruth = truth;
+      this.colors = colors.clone();
+
+      channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING,
+          StandardOpenOption.READ, StandardOpenOption.WRITE);
+      try {
+        ByteBuffer header = ByteBuffer.allocate(headerSize(colors.length)).order(ByteOrder.LITTLE_ENDIAN);
+        header.putInt(MAGIC).putInt(VERSION).putInt((packed ? PACKED : 0) | (truth ? TRUTH : 0));
+        header.putInt(colors.length).putLong(length);
+        header.putInt(maze.width).putInt(maze.height).putInt(maze.stateCount);
+        for (char c : colors)
+          header.putChar(c);
+        header.position(0);
+        while (header.hasRemaining())
+          channel.write(header);
+
+        long readingStart = header.capacity();
+        long truthStart = readingStart + align(readingBytes(length, packed));
+        // Size the file up front, padding included
+        long end = truthStart + (truth ? 4 * length : 0);
+        if (end > readingStart)
+          channel.write(ByteBuffer.allocate(1), end - 1);
+
+        this.readings = new Window(channel, FileChannel.MapMode.READ_WRITE, readingStart,
+            readingBytes(length, packed));
+        this.truth = truth ? new Window(channel, FileChannel.MapMode.READ_WRITE, truthStart, 4 * length) : null;
+      } catch (IOException | RuntimeException e) {
+        channel.close();
+        throw e;
+      }
+    }
+
+    /**
+     * Appends one reading and the state it was taken in (ignored without
+     * ground truth)
+     */
+    public void append(char reading, int state) {
+      if (position >= length)
+        throw new IllegalStateException("Trace already has all " + length + " readings");
+
+      int index = colorIndex(reading);
+      if (packed) {
+        long at = position >>> 2;
+        readings.put(at, (byte) (readings.get(at) | (index << (2 * (int) (position & 3)))));
+      } else {
+        readings.put(position, (byte) index);
+      }
+      if (hasTruth)
+        truth.putInt(4 * position, state);
+      position++;
+    }
+
+    /**
+     * Flushes the trace to disk. Throws if fewer readings were appended than
+     * the header promises.
+     */
+    public void close() throws IOException {
+      try {
+        if (position != length)
+          throw new IllegalStateException("Trace has " + position + " of " + length + " readings");
+        channel.force(false);
+      } finally {
+        channel.close();
+      }
+    }
+
+    private int colorIndex(char reading) {
+      for (int c = 0; c < colors.length; c++)
+        if (colors[c] == reading)
+          return c;
+      throw new IllegalArgumentException("Unknown color reading '" + reading + "'");
+    }
+  }
+
+  // One mapped piece of a section of the file at a time, remapped when an
+  // access falls outside it
+  private static final class Window {
+    private final FileChannel channel;
+    private final FileChannel.MapMode mode;
+    private final long start, size;
+    private MappedByteBuffer buf;
+    private long base = -1; // Offset into the section of the mapped piece
+
+    Window(FileChannel channel, FileChannel.MapMode mode, long start, long size) {
+      this.channel = channel;
+      this.mode = mode;
+      this.start = start;
+      this.size = size;
+    }
+
+    byte get(long at) {
+      return buffer(at).get((int) (at - base));
+    }
+
+    void put(long at, byte value) {
+      buffer(at).put((int) (at - base), value);
+    }
+
+    int getInt(long at) {
+      return buffer(at).getInt((int) (at - base));
+    }
+
+    void putInt(long at, int value) {
+      buffer(at).putInt((int) (at - base), value);
+    }
+
+    // Pieces start on multiples of MAP_CHUNK, so an int never straddles two
+    private MappedByteBuffer buffer(long at) {
+      if (base < 0 || at < base || at >= base + buf.capacity()) {
+        base = at - at % MAP_CHUNK;
+        try {
+          buf = channel.map(mode, start + base, Math.min(MAP_CHUNK, size - base));
+        } catch (IOException e) {
+          throw new UncheckedIOException(e);
+        }
+        buf.order(ByteOrder.LITTLE_ENDIAN);
+      }
+      return buf;
+    }
+  }
+
+  private static long readingBytes(long length, boolean packed) {
+    return packed ? (length + 3) >>> 2 : length;
+  }
+
+  private static int headerSize(int colorCount) {
+    return (int) align(FIXED_HEADER + 2 * colorCount);
+  }
+
+  private static long align(long bytes) {
+    return (bytes + 7) & ~7L;
+  }
+}
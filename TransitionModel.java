@@ -0,0 +1,175 @@
+package probabalistic_reasoning;
+
+import java.util.Arrays;
+
+/**
+ * Sparse transition model for the maze.
+ *
+ * A robot can only move by one of Maze.actions, so every state has at most
+ * MAX_MOVES successors and MAX_MOVES predecessors. Both are stored in flat
+ * neighbor tables with one slot per action (slot a holds the state reached by
+ * action a, or -1 if that move is illegal), so a full step over the model
+ * costs O(MAX_MOVES * n) instead of O(n^2).
+ */
+public class TransitionModel {
+  public static final int MAX_MOVES = Maze.actions.length;
+
+  public final int stateCount;
+
+  // next[s * MAX_MOVES + a] = state reached from s by action a (or -1)
+  final int[] next;
+  // prev[s * MAX_MOVES + a] = state that reaches s by action a (or -1)
+  final int[] prev;
+  // Probability of each of the legal moves out of s (uniform over legal moves)
+  final double[] moveProb;
+  // log(moveProb[s]), for max-product decoding in log space
+  final double[] logMoveProb;
+
+  public TransitionModel(Maze m) {
+    this.stateCount = m.stateCount;
+    next = new int[stateCount * MAX_MOVES];
+    prev = new int[stateCount * MAX_MOVES];
+    moveProb = new double[stateCount];
+    logMoveProb = new double[stateCount];
+    Arrays.fill(next, -1);
+    Arrays.fill(prev, -1);
+
+    for (int state = 0; state < stateCount; state++)
+      link(m, state);
+  }
+
+  // Fills in the state's row of next, the prev entries that point back to it
+  // and its move probability, from the maze as it is now. The state of a
+  // wall cell (in an editable maze) has no moves and probability 0.
+  void link(Maze m, int state) {
+    int x = m.stateX(state);
+    int y = m.stateY(state);
+    int legalMoves = 0;
+
+    if (m.isWall(x, y)) {
+      moveProb[state] = 0.0;
+      logMoveProb[state] = Double.NEGATIVE_INFINITY;
+      return;
+    }
+
+    for (int a = 0; a < MAX_MOVES; a++) {
+      int[] action = Maze.actions[a];
+      if (m.isLegal(x + action[0], y + action[1])) {
+        int nextState = m.XYtoState(x + action[0], y + action[1]);
+        next[state * MAX_MOVES + a] = nextState;
+        prev[nextState * MAX_MOVES + a] = state;
+        legalMoves++;
+      }
+    }
+
+    // Staying put is always legal on a floor cell, so legalMoves >= 1
+    moveProb[state] = 1.0 / legalMoves;
+    logMoveProb[state] = Math.log(moveProb[state]);
+  }
+
+  // Clears the state's row of next and the prev entries that point back to it
+  void unlink(int state) {
+    for (int a = 0; a < MAX_MOVES; a++) {
+      int to = next[state * MAX_MOVES + a];
+      if (to >= 0) {
+        prev[to * MAX_MOVES + a] = -1;
+        next[state * MAX_MOVES + a] = -1;
+      }
+    }
+  }
+
+  // Wraps tables that were already built (see ModelCache)
+  TransitionModel(int[] next, int[] prev, double[] moveProb, double[] logMoveProb) {
+    this.stateCount = moveProb.length;
+    this.next = next;
+    this.prev = prev;
+    this.moveProb = moveProb;
+    this.logMoveProb = logMoveProb;
+  }
+
+  /**
+   * result = TransitionTranspose * message (the prediction step of filtering)
+   */
+  public void predict(double[] message, double[] result) {
+    for (int state = 0; state < stateCount; state++) {
+      double sum = 0.0;
+      int base = state * MAX_MOVES;
+      for (int a = 0; a < MAX_MOVES; a++) {
+        int from = prev[base + a];
+        if (from >= 0)
+          sum += message[from] * moveProb[from];
+      }
+      result[state] = sum;
+    }
+  }
+
+  /**
+   * result = TransitionModel * message (the backward step of smoothing)
+   */
+  public void propagateBack(double[] message, double[] result) {
+    for (int state = 0; state < stateCount; state++) {
+      double sum = 0.0;
+      int base = state * MAX_MOVES;
+      for (int a = 0; a < MAX_MOVES; a++) {
+        int to = next[base + a];
+        if (to >= 0)
+          sum += message[to];
+      }
+      result[state] = sum * moveProb[state];
+    }
+  }
+
+  /**
+   * The state reached from the given state by action a, or -1 if illegal
+   */
+  public int successor(int state, int a) {
+    return next[state * MAX_MOVES + a];
+  }
+
+  /**
+   * The state that reaches the given state by action a, or -1 if none does
+   */
+  public int predecessor(int state, int a) {
+    return prev[state * MAX_MOVES + a];
+  }
+
+  /**
+   * Probability of each legal move out of the given state
+   */
+  public double moveProbability(int state) {
+    return moveProb[state];
+  }
+
+  /**
+   * P(to | from), looked up from the neighbor table
+   */
+  public double probability(int from, int to) {
+    int base = from * MAX_MOVES;
+    for (int a = 0; a < MAX_MOVES; a++)
+      if (next[base + a] == to)
+        return moveProb[from];
+    return 0.0;
+  }
+
+  /**
+   * Expands one row of the (dense) transition matrix, for printing
+   */
+  public void row(int from, double[] result) {
+    Arrays.fill(result, 0.0);
+    int base = from * MAX_MOVES;
+    for (int a = 0; a < MAX_MOVES; a++)
+      if (next[base + a] >= 0)
+        result[next[base + a]] = moveProb[from];
+  }
+
+  /**
+   * Expands one column of the (dense) transition matrix, for printing
+   */
+  public void column(int to, double[] result) {
+    Arrays.fill(result, 0.0);
+    int base = to * MAX_MOVES;
+    for (int a = 0; a < MAX_MOVES; a++)
+      if (prev[base + a] >= 0)
+        result[prev[base + a]] = moveProb[prev[base + a]];
+  }
+}
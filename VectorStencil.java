@@ -0,0 +1,72 @@
+package probabalistic_reasoning;
+
+import jdk.incubator.vector.DoubleVector;
+import jdk.incubator.vector.VectorOperators;
+import jdk.incubator.vector.VectorSpecies;
+
+/**
+ * GridStencil with the weigh, gather and scale passes written with the
+ * Vector API. Only loaded through GridStencil.create() when the
+ * jdk.incubator.vector module is present (--add-modules jdk.incubator.vector).
+ */
+final class VectorStencil extends GridStencil {
+  private static final VectorSpecies<Double> SPECIES = DoubleVector.SPECIES_PREFERRED;
+
+  VectorStencil(MazeModel model) {
+    super(model);
+  }
+
+  public void weigh(double[] message, double[] tmp, int rowFrom, int rowTo) {
+    int i = rowFrom * stride;
+    int end = rowTo * stride;
+    int bound = i + SPECIES.loopBound(end - i);
+
+    for (; i < bound; i += SPECIES.length())
+      DoubleVector.fromArray(SPECIES, message, i)
+          .mul(DoubleVector.fromArray(SPECIES, outWeight, i))
+          .intoArray(tmp, i);
+    for (; i < end; i++)
+      tmp[i] = message[i] * outWeight[i];
+  }
+
+  public double gather(double[] tmp, double[] out, int color, int rowFrom, int rowTo) {
+    double[] lik = likelihood[color];
+    DoubleVector acc = DoubleVector.zero(SPECIES);
+    double sum = 0.0;
+
+    for (int row = rowFrom + 1; row <= rowTo; row++) {
+      int i = row * stride + 1;
+      int end = i + width;
+      int bound = i + SPECIES.loopBound(width);
+
+      // The padding means i - 1, i + 1 and i +- stride are always in range
+      for (; i < bound; i += SPECIES.length()) {
+        DoubleVector v = DoubleVector.fromArray(SPECIES, tmp, i)
+            .add(DoubleVector.fromArray(SPECIES, tmp, i - 1))
+            .add(DoubleVector.fromArray(SPECIES, tmp, i + 1))
+            .add(DoubleVector.fromArray(SPECIES, tmp, i - stride))
+            .add(DoubleVector.fromArray(SPECIES, tmp, i + stride))
+            .mul(DoubleVector.fromArray(SPECIES, lik, i));
+        v.intoArray(out, i);
+        acc = acc.add(v);
+      }
+      for (; i < end; i++) {
+        double v = lik[i] * (tmp[i] + tmp[i - 1] + tmp[i + 1] + tmp[i - stride] + tmp[i + stride]);
+        out[i] = v;
+        sum += v;
+      }
+    }
+    return sum + acc.reduceLanes(VectorOperators.ADD);
+  }
+
+  public void scale(double[] message, double factor, int rowFrom, int rowTo) {
+    int i = (rowFrom + 1) * stride;
+    int end = (rowTo + 1) * stride;
+    int bound = i + SPECIES.loopBound(end - i);
+
+    for (; i < bound; i += SPECIES.length())
+      DoubleVector.fromArray(SPECIES, message, i).mul(factor).intoArray(message, i);
+    for (; i < end; i++)
+      message[i] *= factor;
+  }
+}
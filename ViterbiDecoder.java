@@ -0,0 +1,193 @@
+package probabalistic_reasoning;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.Arrays;
+
+/**
+ * Viterbi most-likely-path decoder.
+ *
+ * Works in log space, so long traces cannot underflow, and only scans the
+ * legal predecessors of each state. The score rows are two preallocated
+ * buffers that are swapped every step and the backpointer table is sized up
+ * front, so decoding does not allocate until the path is read back out.
+ *
+ * Backpointers are stored as 3-bit action codes (see BackpointerStore),
+ * on the heap or, for very long traces, in a memory-mapped spill file.
+ */
+public class ViterbiDecoder implements AutoCloseable {
+  public final TransitionModel transitions;
+  public final SensorModel sensors;
+  public final int stateCount;
+  public final int maxSteps;
+
+  private double[] score;     // Log score of the best path ending in each state
+  private double[] nextScore; // Scratch row for the next step
+  private final BackpointerStore backchains; // Best previous state of each state at each step
+  private final long[] codes; // The current step's packed codes
+  private int steps;
+
+  public ViterbiDecoder(TransitionModel transitions, SensorModel sensors, int maxSteps) {
+    this(transitions, sensors, BackpointerStore.inMemory(transitions.stateCount, maxSteps));
+  }
+
+  /**
+   * A decoder whose backpointers are kept in the given file instead of on
+   * the heap. close() releases the file.
+   */
+  public ViterbiDecoder(TransitionModel transitions, SensorModel sensors, int maxSteps, Path spillFile)
+      throws IOException {
+    this(transitions, sensors, BackpointerStore.mapped(spillFile, transitions.stateCount, maxSteps));
+  }
+
+  private ViterbiDecoder(TransitionModel transitions, SensorModel sensors, BackpointerStore backchains) {
+    this.transitions = transitions;
+    this.sensors = sensors;
+    this.stateCount = transitions.stateCount;
+    this.maxSteps = backchains.maxSteps;
+    this.backchains = backchains;
+
+    score = new double[stateCount];
+    nextScore = new double[stateCount];
+    codes = new long[backchains.wordsPerStep];
+  }
+
+  /**
+   * Starts a new decode: the first reading is taken after one move from prior
+   */
+  public void start(double[] prior, char color) {
+    int offset = sensors.colorIndex(color) * stateCount;
+
+    transitions.predict(prior, nextScore);
+    for (int state = 0; state < stateCount; state++)
+      score[state] = Math.log(nextScore[state]) + sensors.logLikelihood[offset + state];
+
+    rescale(); // The first step has no backpointers
+    steps = 1;
+  }
+
+  /**
+   * Extends every best path by one move and one reading
+   */
+  public void step(char color) {
+    int offset = sensors.colorIndex(color) * stateCount;
+    int maxCode, lastState;
+    double maxVal, tempVal;
+    double[] swap;
+
+    if (steps == 0)
+      throw new IllegalStateException("start() must be called before step()");
+    if (steps == maxSteps)
+      throw new IllegalStateException("Decoder is full (" + maxSteps + " steps)");
+    long start = Instrumentation.on ? Instrumentation.begin() : 0L;
+
+    Arrays.fill(codes, 0L);
+    for (int currState = 0; currState < stateCount; currState++) {
+      maxCode = 0;
+      maxVal = Double.NEGATIVE_INFINITY;
+
+      // Only the legal predecessors can reach this state
+      for (int a = 0; a < TransitionModel.MAX_MOVES; a++) {
+        lastState = transitions.prev[currState * TransitionModel.MAX_MOVES + a];
+        if (lastState < 0)
+          continue;
+
+        tempVal = score[lastState] + transitions.logMoveProb[lastState];
+        if (tempVal > maxVal) {
+          maxVal = tempVal;
+          maxCode = a;
+        }
+      }
+
+      nextScore[currState] = maxVal + sensors.logLikelihood[offset + currState];
+      codes[currState / BackpointerStore.PER_WORD] |=
+          (long) maxCode << (BackpointerStore.BITS * (currState % BackpointerStore.PER_WORD));
+    }
+    backchains.put(steps, codes);
+
+    swap = score;
+    score = nextScore;
+    nextScore = swap;
+
+    rescale();
+    if (start != 0L)
+      Instrumentation.step(Metrics.Phase.VITERBI, start, steps, null, Double.NaN);
+    steps++;
+  }
+
+  /**
+   * Runs a whole evidence sequence and returns the most likely path
+   */
+  public int[] decode(double[] prior, char[] evidence) {
+    start(prior, evidence[0]);
+    for (int step = 1; step < evidence.length; step++)
+      step(evidence[step]);
+    return bestPath();
+  }
+
+  public int steps() {
+    return steps;
+  }
+
+  /**
+   * The state at the end of the most likely path so far
+   */
+  public int bestState() {
+    int maxState = -1;
+    double maxVal = Double.NEGATIVE_INFINITY;
+    for (int state = 0; state < stateCount; state++) {
+      if (score[state] > maxVal) {
+        maxVal = score[state];
+        maxState = state;
+      }
+    }
+    return maxState;
+  }
+
+  /**
+   * Probability of the most likely path, relative to the best path into
+   * every other state (the normalized Viterbi message)
+   */
+  public double bestProbability() {
+    double sum = 0.0;
+    for (int state = 0; state < stateCount; state++)
+      sum += Math.exp(score[state]); // Scores are rescaled so the best is 0
+    return 1.0 / sum;
+  }
+
+  /**
+   * Follows the backchains from the best final state
+   */
+  public int[] bestPath() {
+    int[] path = new int[steps];
+    int currState = bestState();
+
+    path[steps - 1] = currState;
+    for (int step = steps - 1; step > 0; step--) {
+      currState = transitions.prev[currState * TransitionModel.MAX_MOVES + backchains.code(step, currState)];
+      path[step - 1] = currState;
+    }
+    return path;
+  }
+
+  /**
+   * Releases the spill file, if there is one
+   */
+  public void close() throws IOException {
+    backchains.close();
+  }
+
+  // Shift the scores so the best is 0; keeps them in range on long traces
+  private void rescale() {
+    double max = Double.NEGATIVE_INFINITY;
+    for (int state = 0; state < stateCount; state++)
+      if (score[state] > max)
+        max = score[state];
+
+    if (max == Double.NEGATIVE_INFINITY)
+      throw new IllegalStateException("Evidence is impossible under the model");
+
+    for (int state = 0; state < stateCount; state++)
+      score[state] -= max;
+  }
+}
@@ -0,0 +1,81 @@
+package probabalistic_reasoning.bench;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import probabalistic_reasoning.Maze;
+import probabalistic_reasoning.MazeModel;
+import probabalistic_reasoning.OnlineFilter;
+import probabalistic_reasoning.Smoother;
+
+/**
+ * K evidence traces on one maze: K separate runs against one SequenceBatch
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class BatchBenchmark {
+  @Param({"64", "256"})
+  public int size;
+
+  @Param({"1", "8", "32"})
+  public int sequences;
+
+  @Param({"100"})
+  public int pathLength;
+
+  private MazeModel model;
+  private char[][] evidence;
+
+  @Setup(Level.Trial)
+  public void setUp() {
+    Maze maze = BenchMazes.randomMaze(size, 0.25, 42L);
+    model = new MazeModel(maze);
+    evidence = new char[sequences][];
+    for (int k = 0; k < sequences; k++)
+      evidence[k] = maze.getColorPath(maze.getPath(pathLength));
+  }
+
+  @Benchmark
+  public void filterSeparately(Blackhole bh) {
+    for (char[] trace : evidence) {
+      OnlineFilter filter = model.newFilter();
+      for (char color : trace)
+        filter.observe(color);
+      bh.consume(filter.belief());
+    }
+  }
+
+  @Benchmark
+  public double[] filterBatched() {
+    return model.newBatch(evidence).filter(null);
+  }
+
+  @Benchmark
+  public void smoothSeparately(Blackhole bh) {
+    Smoother smoother = model.newSmoother();
+    for (char[] trace : evidence)
+      smoother.smoothCheckpointed(trace, (step, distribution) -> bh.consume(distribution));
+  }
+
+  @Benchmark
+  public void smoothBatched(Blackhole bh) {
+    model.newBatch(evidence).smooth((sequence, step, distribution) -> bh.consume(distribution));
+  }
+}
@@ -0,0 +1,63 @@
+package probabalistic_reasoning.bench;
+
+import java.util.SplittableRandom;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import probabalistic_reasoning.BeamDecoder;
+import probabalistic_reasoning.Maze;
+import probabalistic_reasoning.MazeModel;
+
+/**
+ * Exact Viterbi against beam decoding, over maze size and beam width
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class BeamBenchmark {
+  @Param({"256", "1024"})
+  public int size;
+
+  @Param({"10", "100", "1000"})
+  public int beamWidth;
+
+  @Param({"1000"})
+  public int pathLength;
+
+  private MazeModel model;
+  private char[] evidence;
+
+  @Setup(Level.Trial)
+  public void setUp() {
+    Maze maze = BenchMazes.randomMaze(size, 0.25, 42L);
+    model = new MazeModel(maze);
+    evidence = new char[pathLength];
+    model.newSimulator().simulate(new int[pathLength], evidence, new SplittableRandom(7L));
+  }
+
+  @Benchmark
+  public int[] exact() {
+    return model.newDecoder(pathLength).decode(model.prior, evidence);
+  }
+
+  @Benchmark
+  public int[] beam() {
+    BeamDecoder beam = model.newBeamDecoder(beamWidth);
+    return beam.decode(model.prior, evidence);
+  }
+}
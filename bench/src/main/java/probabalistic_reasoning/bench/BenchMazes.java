@@ -0,0 +1,19 @@
+package probabalistic_reasoning.bench;
+
+import probabalistic_reasoning.Maze;
+import probabalistic_reasoning.MazeGenerator;
+
+/**
+ * Seeded random mazes for the benchmarks
+ */
+final class BenchMazes {
+  private BenchMazes() {}
+
+  /**
+   * A size x size maze where each cell is a wall with probability
+   * wallDensity, with equally likely colors
+   */
+  static Maze randomMaze(int size, double wallDensity, long seed) {
+    return new MazeGenerator(size, size, wallDensity, seed).generate();
+  }
+}
@@ -0,0 +1,30 @@
+package probabalistic_reasoning.bench;
+
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.results.format.ResultFormatType;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.CommandLineOptionException;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Runs the benchmarks with the GC (allocation) profiler on and writes the
+ * results as JSON (jmh-result.json unless -rff is given). Takes the usual
+ * JMH command line, e.g. -p size=64 -p pathLength=1000 InferenceBenchmark
+ */
+public class BenchmarkRunner {
+  public static void main(String[] args) throws RunnerException, CommandLineOptionException {
+    CommandLineOptions cmd = new CommandLineOptions(args);
+
+    Options options = new OptionsBuilder()
+        .parent(cmd)
+        .addProfiler(GCProfiler.class)
+        .resultFormat(cmd.getResultFormat().orElse(ResultFormatType.JSON))
+        .result(cmd.getResult().orElse("jmh-result.json"))
+        .build();
+
+    new Runner(options).run();
+  }
+}
@@ -0,0 +1,66 @@
+package probabalistic_reasoning.bench;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import probabalistic_reasoning.Maze;
+import probabalistic_reasoning.ResultSink;
+import probabalistic_reasoning.SchapireDriver.SchapireProblem;
+
+/**
+ * Filtering, smoothing and Viterbi over a whole trace, with printing off
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class InferenceBenchmark {
+  @Param({"4", "16", "64", "256", "1024"})
+  public int size;
+
+  @Param({"10", "100", "1000"})
+  public int pathLength;
+
+  @Param({"0.0", "0.25", "0.5"})
+  public double wallDensity;
+
+  private SchapireProblem problem;
+
+  @Setup(Level.Trial)
+  public void setUp() {
+    Maze maze = BenchMazes.randomMaze(size, wallDensity, 42L);
+    problem = new SchapireProblem(maze, pathLength, ResultSink.NONE);
+  }
+
+  @Benchmark
+  public SchapireProblem solveFiltering() {
+    problem.solveFiltering();
+    return problem;
+  }
+
+  @Benchmark
+  public SchapireProblem solveSmoothing() {
+    problem.solveSmoothing();
+    return problem;
+  }
+
+  @Benchmark
+  public SchapireProblem solveBestPath() {
+    problem.solveBestPath();
+    return problem;
+  }
+}
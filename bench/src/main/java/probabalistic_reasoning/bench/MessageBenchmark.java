@@ -0,0 +1,59 @@
+package probabalistic_reasoning.bench;
+
+import java.util.SplittableRandom;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import probabalistic_reasoning.SchapireDriver.SchapireProblem;
+
+/**
+ * The dense message helpers on SchapireProblem. matrixMultiply is O(n^2),
+ * so the state counts stay small.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class MessageBenchmark {
+  @Param({"16", "256", "4096"})
+  public int states;
+
+  private double[][] matrix;
+  private double[] message;
+
+  @Setup(Level.Trial)
+  public void setUp() {
+    SplittableRandom rand = new SplittableRandom(42L);
+    matrix = new double[states][states];
+    message = new double[states];
+    for (int y = 0; y < states; y++) {
+      message[y] = rand.nextDouble();
+      for (int x = 0; x < states; x++)
+        matrix[y][x] = rand.nextDouble();
+    }
+  }
+
+  @Benchmark
+  public double[] matrixMultiply() {
+    return SchapireProblem.matrixMultiply(matrix, message);
+  }
+
+  @Benchmark
+  public double[] normalize() {
+    return SchapireProblem.normalize(message);
+  }
+}
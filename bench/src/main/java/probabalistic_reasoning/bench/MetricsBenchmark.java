@@ -0,0 +1,61 @@
+package probabalistic_reasoning.bench;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import probabalistic_reasoning.Maze;
+import probabalistic_reasoning.MazeModel;
+import probabalistic_reasoning.Metrics;
+import probabalistic_reasoning.OnlineFilter;
+
+/**
+ * What the per-step instrumentation costs a filter step, with Metrics off
+ * (one flag check) and on
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class MetricsBenchmark {
+  @Param({"64", "256"})
+  public int size;
+
+  @Param({"false", "true"})
+  public boolean metrics;
+
+  private OnlineFilter filter;
+  private int step;
+
+  @Setup(Level.Trial)
+  public void setUp() {
+    filter = new MazeModel(BenchMazes.randomMaze(size, 0.25, 42L)).newFilter();
+    if (metrics)
+      Metrics.enable();
+  }
+
+  @TearDown(Level.Trial)
+  public void tearDown() {
+    Metrics.disable();
+    Metrics.reset();
+  }
+
+  @Benchmark
+  public double[] observe() {
+    return filter.observe(Maze.colorSet[step++ & 3]);
+  }
+}
@@ -0,0 +1,79 @@
+package probabalistic_reasoning.bench;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import probabalistic_reasoning.Maze;
+import probabalistic_reasoning.MazeEditor;
+import probabalistic_reasoning.MazeModel;
+import probabalistic_reasoning.ResultSink;
+import probabalistic_reasoning.SchapireDriver.SchapireProblem;
+
+/**
+ * Cost of building the transition and sensor models, against changing one
+ * cell of them in place
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ModelBenchmark {
+  @Param({"4", "16", "64", "256", "1024"})
+  public int size;
+
+  @Param({"0.0", "0.25", "0.5"})
+  public double wallDensity;
+
+  private SchapireProblem problem;
+  private MazeEditor editor;
+  private int toggleX, toggleY; // A floor cell, so every toggle relinks
+
+  @Setup(Level.Trial)
+  public void setUp() {
+    Maze maze = BenchMazes.randomMaze(size, wallDensity, 42L);
+    problem = new SchapireProblem(maze, 1, ResultSink.NONE);
+    editor = new MazeEditor(problem.model);
+    editor.newFilter();
+
+    // The first floor cell from the middle on, in row-major order (there is
+    // one, or building the model would have failed)
+    int cells = size * size;
+    for (int i = 0; i < cells; i++) {
+      int cell = (cells / 2 + i) % cells;
+      if (!maze.isWall(cell % size, cell / size)) {
+        toggleX = cell % size;
+        toggleY = cell / size;
+        break;
+      }
+    }
+  }
+
+  @Benchmark
+  public MazeModel modelSetUp() {
+    problem.setUp();
+    return problem.model;
+  }
+
+  // Closes and reopens a floor cell near the middle, with a filter attached
+  @Benchmark
+  @OutputTimeUnit(TimeUnit.NANOSECONDS)
+  public MazeModel wallToggle() {
+    editor.setWall(toggleX, toggleY);
+    editor.setFloor(toggleX, toggleY);
+    return editor.model;
+  }
+}
@@ -0,0 +1,84 @@
+package probabalistic_reasoning.bench;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import probabalistic_reasoning.Maze;
+import probabalistic_reasoning.MazeModel;
+import probabalistic_reasoning.OnlineFilter;
+import probabalistic_reasoning.TimeScan;
+
+/**
+ * Sequential filtering and Viterbi against the parallel-in-time scan, over
+ * trace length, on small mazes (the scan does n times the work, so it only
+ * wins with more cores than states)
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ScanBenchmark {
+  @Param({"3", "4"})
+  public int size;
+
+  @Param({"10000", "100000", "1000000"})
+  public int traceLength;
+
+  @Param({"1", "4", "16"})
+  public int threads;
+
+  private MazeModel model;
+  private char[] evidence;
+  private TimeScan scan;
+
+  @Setup(Level.Trial)
+  public void setUp() {
+    Maze maze = BenchMazes.randomMaze(size, 0.0, 42L);
+    model = new MazeModel(maze);
+    evidence = maze.getColorPath(maze.getPath(traceLength));
+    scan = new TimeScan(model, threads);
+  }
+
+  @TearDown(Level.Trial)
+  public void tearDown() {
+    scan.close();
+  }
+
+  @Benchmark
+  public double[] filterSequential() {
+    OnlineFilter filter = model.newFilter();
+    for (char color : evidence)
+      filter.observe(color);
+    return filter.belief();
+  }
+
+  @Benchmark
+  public double[][] filterScan() {
+    return scan.filter(evidence);
+  }
+
+  @Benchmark
+  public int[] decodeSequential() {
+    return model.newDecoder(traceLength).decode(model.prior, evidence);
+  }
+
+  @Benchmark
+  public int[] decodeScan() {
+    return scan.decode(evidence);
+  }
+}
@@ -0,0 +1,63 @@
+package probabalistic_reasoning.bench;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import probabalistic_reasoning.LocalizationSession;
+import probabalistic_reasoning.Maze;
+import probabalistic_reasoning.MazeModel;
+
+/**
+ * One observation per call on sessions sharing a model, one session per
+ * thread, so the percentiles show what the shared model costs under
+ * contention (sample mode reports p50 and p99)
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SampleTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@Threads(4)
+public class SessionBenchmark {
+  @Param({"64", "256"})
+  public int size;
+
+  MazeModel model;
+  final AtomicLong ids = new AtomicLong();
+
+  @Setup(Level.Trial)
+  public void setUp() {
+    model = new MazeModel(BenchMazes.randomMaze(size, 0.25, 42L));
+  }
+
+  @State(Scope.Thread)
+  public static class Robot {
+    LocalizationSession session;
+    int step;
+
+    @Setup(Level.Trial)
+    public void setUp(SessionBenchmark shared) {
+      session = shared.model.newSession(shared.ids.incrementAndGet());
+    }
+  }
+
+  @Benchmark
+  public int observe(Robot robot) {
+    return robot.session.observe(Maze.colorSet[robot.step++ & 3]);
+  }
+}
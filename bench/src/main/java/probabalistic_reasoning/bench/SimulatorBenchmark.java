@@ -0,0 +1,68 @@
+package probabalistic_reasoning.bench;
+
+import java.util.SplittableRandom;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import probabalistic_reasoning.Maze;
+import probabalistic_reasoning.MazeModel;
+import probabalistic_reasoning.PathSimulator;
+
+/**
+ * Drawing a path and its readings by rejection (Maze.getPath) against
+ * PathSimulator's neighbor tables, over maze size and wall density
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SimulatorBenchmark {
+  @Param({"64", "1024"})
+  public int size;
+
+  @Param({"0.1", "0.4"})
+  public double wallDensity;
+
+  @Param({"100000"})
+  public int pathLength;
+
+  private Maze maze;
+  private PathSimulator simulator;
+  private SplittableRandom rand;
+  private int[] states;
+  private char[] readings;
+
+  @Setup(Level.Trial)
+  public void setUp() {
+    maze = BenchMazes.randomMaze(size, wallDensity, 42L);
+    simulator = new MazeModel(maze).newSimulator();
+    rand = new SplittableRandom(7L);
+    states = new int[pathLength];
+    readings = new char[pathLength];
+  }
+
+  @Benchmark
+  public char[] rejection() {
+    return maze.getColorPath(maze.getPath(pathLength, rand), rand);
+  }
+
+  @Benchmark
+  public char[] tables() {
+    simulator.simulate(states, readings, rand);
+    return readings;
+  }
+}